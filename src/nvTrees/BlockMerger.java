@@ -0,0 +1,197 @@
+package nvTrees;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Map;
+
+/**
+ * Merges the blocks of a pattern, stored as the keys of a map, two at a time.
+ * <br>
+ * Two blocks can only be merged along a color i if they are siblings along i
+ * (see {@link SuperPath#getSibling(int)}), so the candidate pairs are found by looking up
+ * the sibling of each block in the map, without sorting. For each color, the left blocks
+ * of the pairs that can be merged are kept in a work list; when two blocks are merged,
+ * the pairs they were in are dropped from the lists, and only the siblings of the new block
+ * are looked up. Merging a pattern of n blocks this way takes O(n*dim) lookups.
+ * <p>
+ * A subclass decides which pairs of siblings can be merged, and what the merged block maps to.
+ * @param <V> the type of the values of the map
+ */
+abstract class BlockMerger<V> {
+
+	/**
+	 * The blocks, with whatever they map to
+	 */
+	protected final Map<SuperPath, V> blocks;
+
+	/**
+	 * The largest color to merge along
+	 */
+	protected final int dim;
+
+	/**
+	 * candidates.get(i) holds the left blocks of the pairs that can be merged along color i
+	 */
+	private final ArrayList<HashSet<SuperPath>> candidates = new ArrayList<HashSet<SuperPath>>();
+
+	/**
+	 * Set once the initial candidates have been found
+	 */
+	private boolean started = false;
+
+	/**
+	 * Creates a merger for the blocks of a map. The map is modified by the merges.
+	 * @param blocks the map whose keys are the blocks
+	 * @param dim the largest color used by the blocks
+	 */
+	BlockMerger(Map<SuperPath, V> blocks, int dim)
+	{
+		this.blocks = blocks;
+		this.dim = dim;
+		candidates.add(null);	//no color 0
+		for (int i=1;i<=dim;i++)
+		{
+			candidates.add(new HashSet<SuperPath>());
+		}
+	}
+
+	/**
+	 * Tells whether two sibling blocks can be merged
+	 * @param L the left block (the one whose color path of this color ends with 0)
+	 * @param R the right block, the sibling of L along color
+	 * @param color the color along which L and R are siblings
+	 * @return true if the two blocks can be merged
+	 */
+	protected abstract boolean canMerge(SuperPath L, SuperPath R, int color) throws TreeNodeException;
+
+	/**
+	 * Returns the value of the merged block
+	 * @param left the value of the left block
+	 * @param right the value of the right block
+	 * @param color the color along which the blocks are merged
+	 * @return the value of the block that the two blocks are merged into
+	 */
+	protected abstract V merge(V left, V right, int color) throws TreeNodeException;
+
+	/**
+	 * Merges the blocks in rounds: finds the smallest color i along which
+	 * some blocks can be merged, merges all such pairs, and starts again from color 1.
+	 * Stops when nothing can be merged.
+	 * @return the number of merges done
+	 */
+	int mergeRounds() throws TreeNodeException
+	{
+		start();
+		int count = 0;
+		while (blocks.size()>1)
+		{
+			int curcol = 1;
+			while ((curcol<=dim)&&(candidates.get(curcol).isEmpty()))
+			{
+				curcol++;
+			}
+			if (curcol>dim)	//if not found anything in all colors, we're done
+			{
+				break;
+			}
+			count += mergeAllAlong(curcol);
+		}
+		return count;
+	}
+
+	/**
+	 * Merges the blocks the way a grid is reduced: for i=1,2,...,dim,
+	 * as long as all the blocks can be merged in pairs along color i, merges all of them.
+	 * @return the number of merges done
+	 */
+	int mergeGrid() throws TreeNodeException
+	{
+		start();
+		int count = 0;
+		for (int curcol=1;curcol<=dim;curcol++)
+		{
+			while ((blocks.size()>1)&&(2*candidates.get(curcol).size()==blocks.size()))
+			{
+				count += mergeAllAlong(curcol);
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Finds the initial candidates, if that hasn't been done yet
+	 */
+	private void start() throws TreeNodeException
+	{
+		if (!started)
+		{
+			for (SuperPath P:blocks.keySet())
+			{
+				addCandidatesAt(P);
+			}
+			started = true;
+		}
+	}
+
+	/**
+	 * Merges all the pairs that are currently candidates along a color
+	 * (the pairs along one color never share a block)
+	 * @param curcol the color
+	 * @return the number of merges done
+	 */
+	private int mergeAllAlong(int curcol) throws TreeNodeException
+	{
+		ArrayList<SuperPath> lefts = new ArrayList<SuperPath>(candidates.get(curcol));
+		for (SuperPath L:lefts)
+		{
+			mergeAt(L, curcol);
+		}
+		return lefts.size();
+	}
+
+	/**
+	 * Merges a block with its sibling
+	 * @param L the left block
+	 * @param curcol the color along which the blocks are merged
+	 */
+	private void mergeAt(SuperPath L, int curcol) throws TreeNodeException
+	{
+		SuperPath R = L.getSibling(curcol);
+		for (int i=1;i<=dim;i++)
+		{
+			HashSet<SuperPath> cand = candidates.get(i);
+			cand.remove(L);
+			cand.remove(R);
+			SuperPath LS = L.getSibling(i);	//the pairs of L or R with their siblings
+			SuperPath RS = R.getSibling(i);	//are gone too
+			if (LS!=null) {cand.remove(LS);}
+			if (RS!=null) {cand.remove(RS);}
+		}
+		V merged = merge(blocks.remove(L), blocks.remove(R), curcol);
+		SuperPath M = new SuperPath(L);
+		M.goUp(curcol);
+		blocks.put(M, merged);
+		addCandidatesAt(M);
+	}
+
+	/**
+	 * Adds the pairs of a block and its siblings that can be merged to the candidates
+	 * @param P the block
+	 */
+	private void addCandidatesAt(SuperPath P) throws TreeNodeException
+	{
+		for (int i=1;i<=dim;i++)
+		{
+			SuperPath S = P.getSibling(i);
+			if ((S!=null)&&blocks.containsKey(S))
+			{
+				boolean left = (P.symbolAt(i, P.getColLength(i)-1)==0);
+				SuperPath L = left ? P : S;
+				SuperPath R = left ? S : P;
+				if (canMerge(L, R, i))
+				{
+					candidates.get(i).add(L);
+				}
+			}
+		}
+	}
+}
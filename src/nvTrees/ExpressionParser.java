@@ -1,4 +1,5 @@
 package nvTrees;
+import java.io.File;
 import java.util.ArrayList;
 import java.util.Arrays;
 
@@ -92,6 +93,9 @@ public class ExpressionParser {
 		unary_operators.add("$"); //reduce
 		unary_operators.add("@"); //(un)reduce to smallest grid on the left
 		unary_operators.add("growth "); //growth [g_1,g_2,..g_k,N] computes the sizes of B_1(id), ... B_N(id) in the GROUP generated by g1_,...,g_k 
+										//growth [g_1,g_2,..g_k,N,offheap] does the same, keeping the elements outside of the Java heap
+										//growth [g_1,g_2,..g_k,N,disk] keeps the spheres in temporary files; disk512 uses batches of 512MB
+										//growth [g_1,g_2,..g_k,N,checkpoint] keeps them in a directory growth-<digest> and goes on from the last run there
 		unary_operators.add("semi "); //same as growth, but for SEMIGROUP
 		
 		binary_opeators.add("^"); //conjugation and power
@@ -299,14 +303,55 @@ public class ExpressionParser {
 					}
 					ArrayList<TreePair> generators = new ArrayList<TreePair>();
 					int N = 0;
-					for (int i=0; i<L.size(); i++)
+					int count = L.size();
+					boolean offHeap = false;
+					long diskBudget = 0;	//0 if the spheres are kept in memory
+					boolean checkpoint = false;
+					if ((count > 2) && "offheap".equals(L.get(count-1)))
+					{
+						offHeap = true;
+						count--;
+					}
+					else if ((count > 2) && (L.get(count-1) instanceof String) && ((String) L.get(count-1)).matches("disk\\d*"))
+					{
+						String MB = ((String) L.get(count-1)).substring(4);
+						if (MB.isEmpty())
+						{
+							diskBudget = Runtime.getRuntime().maxMemory()/4;
+						}
+						else
+						{
+							long megabytes;
+							try
+							{
+								megabytes = Long.parseLong(MB);
+							}
+							catch(NumberFormatException E)
+							{
+								throw new TreeNodeException(MB +" is not a valid number of megabytes");
+							}
+							if ((megabytes <= 0) || (megabytes > (Long.MAX_VALUE>>20)))
+							{
+								throw new TreeNodeException("The memory for each batch must be 1 to " + (Long.MAX_VALUE>>20) + " megabytes");
+							}
+							diskBudget = megabytes<<20;
+						}
+						count--;
+					}
+					else if ((count > 2) && "checkpoint".equals(L.get(count-1)))
+					{
+						diskBudget = Runtime.getRuntime().maxMemory()/4;
+						checkpoint = true;
+						count--;
+					}
+					for (int i=0; i<count; i++)
 					{
 						Object str = L.get(i);
 						if (!(str instanceof String)) 
 						{
 							throw new TreeNodeException("The items in the list must be strings");
 						}
-						if (i<L.size()-1)
+						if (i<count-1)
 						{
 							Object T = getAtomValue((String) str, bucket);
 							if (!(T instanceof TreePair))
@@ -314,11 +359,6 @@ public class ExpressionParser {
 								throw new TreeNodeException("The variable " + str + " does not hold a TreePair");
 							}
 							generators.add((TreePair) T);
-							if (operator.equals("growth "))
-							{
-								TreePair Tinv = TreePair.inverseOf(((TreePair) T));
-								generators.add(Tinv);
-							}
 						}
 						else
 						{
@@ -333,7 +373,48 @@ public class ExpressionParser {
 						}
 					}
 					String growth_str="";
-					int[] growth_values = TreePair.growth(generators, N);
+					int[] growth_values;
+					//the inverses share the trees of the stored generators, so they are released when growth is done
+					ArrayList<TreePair> inverses = new ArrayList<TreePair>();
+					try
+					{
+						if (operator.equals("growth "))
+						{
+							ArrayList<TreePair> stored = generators;
+							generators = new ArrayList<TreePair>();
+							for (TreePair T : stored)
+							{
+								generators.add(T);
+								TreePair Tinv = TreePair.inverseOf(T);
+								inverses.add(Tinv);
+								generators.add(Tinv);
+							}
+						}
+						File dir = null;
+						if (checkpoint)
+						{
+							//the same generators always get the same directory, so that a run can be resumed or extended;
+							//it is named by a 64-bit digest of the operator and the fingerprints of the generators
+							long digest = operator.equals("growth ") ? 1 : 2;
+							for (TreePair g : generators)
+							{
+								digest = TreeShape.mix(digest, g.fingerprint());
+							}
+							dir = new File("growth-" + String.format("%016x", digest));
+						}
+						//with the inverses added, a word can only be equal to words of nearby lengths,
+						//so growth is told the generators are symmetric and only keeps the last spheres
+						growth_values = (diskBudget > 0)
+								? TreePair.growthOnDisk(generators, N, operator.equals("growth "), dir, diskBudget)
+								: TreePair.growthParallel(generators, N, operator.equals("growth "), offHeap);
+					}
+					finally
+					{
+						for (TreePair Tinv : inverses)
+						{
+							Tinv.release();
+						}
+					}
 					growth_str += growth_values[0];
 					for (int i=1; i<growth_values.length; i++)
 					{
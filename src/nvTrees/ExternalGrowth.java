@@ -0,0 +1,633 @@
+package nvTrees;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.PriorityQueue;
+
+/**
+ * Computes the growth function with the spheres kept in files instead of memory
+ * (see {@link TreePair#growthOnDisk(ArrayList, int, boolean, File, long)}).
+ * <p>
+ * Each sphere is a file of <i>records</i>: the fingerprint of a reduced word and its encoding
+ * (see {@link OffHeapPairStore#encode(TreePair)}), sorted by fingerprint and then by encoding, without repetitions.
+ * The next sphere is found in two passes:
+ * <li>The words of the sphere are read one by one and multiplied by the generators. The products
+ * are collected in memory until they take more than the memory budget; then they are sorted and written
+ * to a <i>run</i> file, and the next ones are collected.
+ * <li>The runs are merged, and the merged products are compared with the earlier spheres, which are sorted the same way,
+ * so a product is new exactly when it is in none of them. The new words are written to the file of the new sphere.
+ * <p>
+ * If the generating set is symmetric, a word of length k+1 can only be equal to a word of length k-1, k or k+1,
+ * so only the last two spheres are kept; otherwise, all of them are.
+ * <p>
+ * Unless the files are in a temporary directory, a checkpoint (the generators and the growth function
+ * up to the last sphere) is written to the directory after each sphere, and the files of the spheres that are
+ * still needed are kept. So a computation that was interrupted, or that is asked for more spheres later,
+ * goes on from the last sphere that was done.
+ */
+final class ExternalGrowth {
+
+	/**
+	 * Estimated memory taken by a record, not counting its encoding, in bytes
+	 */
+	private static final int RECORD_OVERHEAD = 64;
+
+	/**
+	 * The generators
+	 */
+	private final ArrayList<TreePair> S;
+
+	/**
+	 * The directory that holds the files
+	 */
+	private final File dir;
+
+	/**
+	 * Largest memory (approximately, in bytes) used for the products before they are written to a run
+	 */
+	private final long budget;
+
+	/**
+	 * Number of run files written so far, used to name them
+	 */
+	private int numRuns = 0;
+
+	/**
+	 * Prepares a computation
+	 * @param S the generators
+	 * @param dir the directory for the files
+	 * @param budget largest memory used for the products, in bytes
+	 */
+	private ExternalGrowth(ArrayList<TreePair> S, File dir, long budget)
+	{
+		this.S = S;
+		this.dir = dir;
+		this.budget = budget;
+	}
+
+	/**
+	 * Computes the growth function \gamma(k) of the semigroup generated by S for k=1..n.
+	 * If dir holds a checkpoint of the same computation, the computation goes on from the last sphere that was done.
+	 * @param S a generating set
+	 * @param n the value of the growth function to compute up to
+	 * @param symmetric set to true only if S contains the inverse of each of its elements
+	 * @param dir the directory to put the files in, where a checkpoint is written after each sphere;
+	 * or null for a new temporary directory, which is deleted when done
+	 * @param budget largest memory (approximately, in bytes) used for the products of one sphere
+	 * @return an array whose i'th value is the number of distinct words of length at most i
+	 */
+	static int[] growth(ArrayList<TreePair> S, int n, boolean symmetric, File dir, long budget) throws TreeNodeException
+	{
+		boolean temporary = (dir == null);
+		try
+		{
+			if (temporary)
+			{
+				dir = Files.createTempDirectory("growth").toFile();
+			}
+			else
+			{
+				Files.createDirectories(dir.toPath());
+			}
+		}
+		catch (IOException e)
+		{
+			throw new TreeNodeException("Could not create a directory for the growth files: "+e.getMessage());
+		}
+		ExternalGrowth G = new ExternalGrowth(S, dir, budget);
+		Checkpoint C = new Checkpoint(S, symmetric);
+		int[] ans = new int[n+1];
+		ans[0] = 1;
+		try
+		{
+			int start = 1;
+			Checkpoint last = temporary ? null : Checkpoint.read(dir);
+			if (last == null)
+			{
+				ArrayList<Record> id = new ArrayList<Record>();
+				id.add(new Record(new TreePair("0,0,1")));
+				G.write(id, G.sphereFile(0));
+			}
+			else
+			{
+				if (!last.generators.equals(C.generators) || (last.symmetric != symmetric))
+				{
+					throw new TreeNodeException("The directory "+dir+" holds a checkpoint of a different growth computation");
+				}
+				start = last.counts.length;
+				File[] files = dir.listFiles();
+				for (int j=0;j<files.length;j++)
+				{
+					if (files[j].getName().startsWith("run"))
+					{
+						files[j].delete();	//left by an interrupted computation
+					}
+				}
+				for (int j=0;symmetric && (j<start-2);j++)
+				{
+					G.sphereFile(j).delete();	//left if a computation was interrupted between a checkpoint and a deletion
+				}
+				System.arraycopy(last.counts, 0, ans, 0, Math.min(start, n+1));
+			}
+			for (int i=start;i<=n;i++)
+			{
+				ArrayList<File> runs = G.expand(G.sphereFile(i-1));
+				ArrayList<File> known = new ArrayList<File>();
+				for (int j = symmetric ? Math.max(0, i-2) : 0; j<i; j++)
+				{
+					known.add(G.sphereFile(j));
+				}
+				int count = G.merge(runs, known, G.sphereFile(i));
+				for (File F:runs)
+				{
+					F.delete();
+				}
+				ans[i] = ans[i-1] + count;
+				if (!temporary)
+				{
+					C.counts = Arrays.copyOf(ans, i+1);
+					C.write(dir);
+				}
+				if (symmetric && (i>=2))
+				{
+					G.sphereFile(i-2).delete();
+				}
+			}
+			return ans;
+		}
+		catch (IOException e)
+		{
+			throw new TreeNodeException("Error writing the growth files in "+dir+": "+e.getMessage());
+		}
+		finally
+		{
+			for (int r=0;r<G.numRuns;r++)
+			{
+				G.runFile(r).delete();
+			}
+			if (temporary)
+			{
+				for (int j=0;j<=n;j++)
+				{
+					G.sphereFile(j).delete();
+				}
+				dir.delete();
+			}
+		}
+	}
+
+	/**
+	 * Continues a growth computation from the checkpoint in a directory
+	 * (see {@link #growth(ArrayList, int, boolean, File, long)})
+	 * @param dir the directory of the computation
+	 * @param n the value of the growth function to compute up to; it may be larger than in the interrupted computation
+	 * @param budget largest memory (approximately, in bytes) used for the products of one sphere
+	 * @return an array whose i'th value is the number of distinct words of length at most i
+	 */
+	static int[] resume(File dir, int n, long budget) throws TreeNodeException
+	{
+		Checkpoint last;
+		try
+		{
+			last = Checkpoint.read(dir);
+		}
+		catch (IOException e)
+		{
+			throw new TreeNodeException("Error reading the checkpoint in "+dir+": "+e.getMessage());
+		}
+		if (last == null)
+		{
+			throw new TreeNodeException("There is no growth checkpoint in "+dir);
+		}
+		ArrayList<TreePair> S = new ArrayList<TreePair>();
+		for (String g:last.generators)
+		{
+			S.add(new TreePair(g));
+		}
+		return growth(S, n, last.symmetric, dir, budget);
+	}
+
+	/**
+	 * Returns the file of a sphere
+	 * @param k the radius of the sphere
+	 */
+	private File sphereFile(int k)
+	{
+		return new File(dir, "sphere"+k+".bin");
+	}
+
+	/**
+	 * Returns a run file
+	 * @param r the number of the run
+	 */
+	private File runFile(int r)
+	{
+		return new File(dir, "run"+r+".bin");
+	}
+
+	/**
+	 * Multiplies the words of a sphere by the generators, and writes the products to sorted runs
+	 * @param sphere the file of the sphere
+	 * @return the run files
+	 */
+	private ArrayList<File> expand(File sphere) throws IOException, TreeNodeException
+	{
+		ArrayList<File> runs = new ArrayList<File>();
+		ArrayList<Record> products = new ArrayList<Record>();
+		long used = 0;
+		RunReader in = new RunReader(sphere);
+		try
+		{
+			while (in.next())
+			{
+				TreePair w = OffHeapPairStore.decode(in.current.code);
+				for (TreePair g : S)
+				{
+					Record R = new Record(TreePair.compose(w, g).reduce());
+					products.add(R);
+					used += R.code.length + RECORD_OVERHEAD;
+					if (used > budget)
+					{
+						runs.add(writeRun(products));
+						used = 0;
+					}
+				}
+			}
+		}
+		finally
+		{
+			in.close();
+		}
+		if (!products.isEmpty())
+		{
+			runs.add(writeRun(products));
+		}
+		return runs;
+	}
+
+	/**
+	 * Sorts records and writes them to a new run file, then clears the list
+	 * @param products the records
+	 * @return the run file
+	 */
+	private File writeRun(ArrayList<Record> products) throws IOException
+	{
+		File F = runFile(numRuns);
+		numRuns++;
+		Collections.sort(products);
+		write(products, F);
+		products.clear();
+		return F;
+	}
+
+	/**
+	 * Writes sorted records to a file, leaving out repetitions
+	 * @param records the records, sorted
+	 * @param F the file
+	 */
+	private void write(ArrayList<Record> records, File F) throws IOException
+	{
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(F), 1<<16));
+		try
+		{
+			Record last = null;
+			for (Record R:records)
+			{
+				if ((last==null)||(last.compareTo(R)!=0))
+				{
+					R.write(out);
+				}
+				last = R;
+			}
+		}
+		finally
+		{
+			out.close();
+		}
+	}
+
+	/**
+	 * Merges the runs, and writes the records that are not in the known files to a new sphere
+	 * @param runs the run files
+	 * @param known the files of the spheres that the new words can be equal to
+	 * @param sphere the file of the new sphere
+	 * @return the number of records in the new sphere
+	 */
+	private int merge(ArrayList<File> runs, ArrayList<File> known, File sphere) throws IOException
+	{
+		MergedStream products = new MergedStream(runs);
+		MergedStream old = new MergedStream(known);
+		FileOutputStream file = new FileOutputStream(sphere);
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file, 1<<16));
+		int count = 0;
+		try
+		{
+			boolean more = old.next();
+			while (products.next())
+			{
+				Record R = products.current;
+				while (more && (old.current.compareTo(R)<0))
+				{
+					more = old.next();
+				}
+				if (!more || (old.current.compareTo(R)!=0))
+				{
+					R.write(out);
+					count++;
+				}
+			}
+			out.flush();
+			file.getFD().sync();	//the sphere must be on the disk before the checkpoint says it is done
+		}
+		finally
+		{
+			out.close();
+			products.close();
+			old.close();
+		}
+		return count;
+	}
+
+	/**
+	 * The state of a computation after a sphere is done, as it is written to the file CHECKPOINT:
+	 * "group" or "semigroup", the number of generators, the generators (one per line), and the values of the growth function
+	 */
+	private static final class Checkpoint
+	{
+		static final String CHECKPOINT = "checkpoint.txt";
+
+		final boolean symmetric;
+		final ArrayList<String> generators = new ArrayList<String>();
+
+		/**
+		 * The values of the growth function up to the last sphere that was done
+		 */
+		int[] counts;
+
+		Checkpoint(ArrayList<TreePair> S, boolean symmetric)
+		{
+			this.symmetric = symmetric;
+			for (TreePair g:S)
+			{
+				generators.add(g.toString());
+			}
+		}
+
+		private Checkpoint(boolean symmetric)
+		{
+			this.symmetric = symmetric;
+		}
+
+		/**
+		 * Reads the checkpoint of a directory
+		 * @param dir the directory
+		 * @return the checkpoint, or null if there is none
+		 */
+		static Checkpoint read(File dir) throws IOException, TreeNodeException
+		{
+			File F = new File(dir, CHECKPOINT);
+			if (!F.exists())
+			{
+				return null;
+			}
+			BufferedReader in = new BufferedReader(new FileReader(F));
+			try
+			{
+				String mode = in.readLine();
+				if (!"group".equals(mode) && !"semigroup".equals(mode))
+				{
+					throw new TreeNodeException("The file "+F+" is not a growth checkpoint");
+				}
+				Checkpoint C = new Checkpoint(mode.equals("group"));
+				int k = Integer.parseInt(in.readLine().trim());
+				for (int i=0;i<k;i++)
+				{
+					C.generators.add(in.readLine());
+				}
+				String[] values = in.readLine().split(",");
+				C.counts = new int[values.length];
+				for (int i=0;i<values.length;i++)
+				{
+					C.counts[i] = Integer.parseInt(values[i].trim());
+				}
+				return C;
+			}
+			catch (NumberFormatException|NullPointerException e)
+			{
+				throw new TreeNodeException("The growth checkpoint "+F+" is damaged");
+			}
+			finally
+			{
+				in.close();
+			}
+		}
+
+		/**
+		 * Writes the checkpoint to a directory. The file is written under another name, synced to the disk
+		 * and then renamed, so an interrupted write or a power loss leaves the last checkpoint as it was.
+		 * @param dir the directory
+		 */
+		void write(File dir) throws IOException
+		{
+			File F = new File(dir, CHECKPOINT+".tmp");
+			FileOutputStream file = new FileOutputStream(F);
+			PrintWriter out = new PrintWriter(new OutputStreamWriter(file));
+			try
+			{
+				out.println(symmetric ? "group" : "semigroup");
+				out.println(generators.size());
+				for (String g:generators)
+				{
+					out.println(g);
+				}
+				String values = ""+counts[0];
+				for (int i=1;i<counts.length;i++)
+				{
+					values += ", "+counts[i];
+				}
+				out.println(values);
+				out.flush();
+				if (out.checkError())
+				{
+					throw new IOException("Could not write "+F);
+				}
+				file.getFD().sync();
+			}
+			finally
+			{
+				out.close();
+			}
+			Files.move(F.toPath(), new File(dir, CHECKPOINT).toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		}
+	}
+
+	/**
+	 * A reduced word as it is kept in the files: its fingerprint and its encoding.
+	 * Records are ordered by fingerprint, then by encoding.
+	 */
+	private static final class Record implements Comparable<Record>
+	{
+		final long fingerprint;
+		final byte[] code;
+
+		Record(long fingerprint, byte[] code)
+		{
+			this.fingerprint = fingerprint;
+			this.code = code;
+		}
+
+		Record(TreePair T) throws TreeNodeException
+		{
+			this(T.fingerprint(), OffHeapPairStore.encode(T));
+		}
+
+		public int compareTo(Record R)
+		{
+			if (fingerprint != R.fingerprint)
+			{
+				return (fingerprint < R.fingerprint) ? -1 : 1;
+			}
+			if (code.length != R.code.length)
+			{
+				return (code.length < R.code.length) ? -1 : 1;
+			}
+			for (int i=0;i<code.length;i++)
+			{
+				if (code[i] != R.code[i])
+				{
+					return (code[i] < R.code[i]) ? -1 : 1;
+				}
+			}
+			return 0;
+		}
+
+		void write(DataOutputStream out) throws IOException
+		{
+			out.writeLong(fingerprint);
+			out.writeInt(code.length);
+			out.write(code);
+		}
+	}
+
+	/**
+	 * Reads the records of a file one by one
+	 */
+	private static final class RunReader
+	{
+		private final DataInputStream in;
+
+		/**
+		 * The last record read
+		 */
+		Record current = null;
+
+		RunReader(File F) throws IOException
+		{
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(F), 1<<16));
+		}
+
+		/**
+		 * Reads the next record
+		 * @return false if there are no more records
+		 */
+		boolean next() throws IOException
+		{
+			long fingerprint;
+			try
+			{
+				fingerprint = in.readLong();
+			}
+			catch (EOFException e)
+			{
+				current = null;
+				return false;
+			}
+			byte[] code = new byte[in.readInt()];
+			in.readFully(code);
+			current = new Record(fingerprint, code);
+			return true;
+		}
+
+		void close() throws IOException
+		{
+			in.close();
+		}
+	}
+
+	/**
+	 * Merges sorted files into one sorted stream of records, without repetitions
+	 */
+	private static final class MergedStream
+	{
+		/**
+		 * The readers that are not done yet, by their current records
+		 */
+		private final PriorityQueue<RunReader> queue = new PriorityQueue<RunReader>(11, (A, B) -> A.current.compareTo(B.current));
+
+		private final ArrayList<RunReader> readers = new ArrayList<RunReader>();
+
+		/**
+		 * The last record returned
+		 */
+		Record current = null;
+
+		MergedStream(ArrayList<File> files) throws IOException
+		{
+			for (File F:files)
+			{
+				RunReader in = new RunReader(F);
+				readers.add(in);
+				if (in.next())
+				{
+					queue.add(in);
+				}
+			}
+		}
+
+		/**
+		 * Moves to the next record that is different from the current one
+		 * @return false if there are no more records
+		 */
+		boolean next() throws IOException
+		{
+			while (!queue.isEmpty())
+			{
+				RunReader in = queue.poll();
+				Record R = in.current;
+				if (in.next())
+				{
+					queue.add(in);
+				}
+				if ((current == null) || (current.compareTo(R) != 0))
+				{
+					current = R;
+					return true;
+				}
+			}
+			return false;
+		}
+
+		void close() throws IOException
+		{
+			for (RunReader in:readers)
+			{
+				in.close();
+			}
+		}
+	}
+}
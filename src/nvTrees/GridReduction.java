@@ -0,0 +1,575 @@
+package nvTrees;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Computes the reduced pattern pair of a multidimensional tree pair, the one that
+ * {@link TreePair#reduce(boolean)} builds the canonical representative from,
+ * without extending the left tree to a full grid.
+ * <p>
+ * The reduction by expansion works like this: the left tree is extended to the full grid
+ * of its color depths D, the grid is reduced to the coarsest grid D' on which the map is linear
+ * on each block ({@link TreePair#reduceGrid(Map)}), and the blocks of that grid are merged
+ * in rounds ({@link TreePair#mergeBlocks(Map)}). The grid has 2^(D_1+...+D_n) blocks, even when the
+ * tree pair only has a few leaves. Here the same result is computed from the leaves:
+ * <li>The map is linear on each leaf. The leaves on which it is the same linear map form a <i>class</i>;
+ * two blocks can only be merged if they are in the same class, and if the image of their union is a block,
+ * i.e. the union is long enough in each color i (at least floor[i] symbols, see {@link Affine}).
+ * <li>The grid D' is the coarsest grid that is reached by the grid reduction for which no block of the grid
+ * meets two classes. Whether a block of a grid meets a leaf only depends on the first few symbols of the
+ * leaf's paths, so this can be checked for each pair of leaves.
+ * <li>The classes do not interact when the blocks are merged, so the blocks of each class are merged separately.
+ * Merging the blocks of a class in rounds goes color by color: the highest color n is only used
+ * when nothing can be merged along colors 1..n-1, so first each slab of the grid (the blocks with the
+ * same path in color n) is merged in colors 1..n-1, which is the same problem in one dimension less.
+ * Then the slabs are merged in pairs along color n, level by level, and the merged slabs are merged
+ * in colors 1..n-1 again ({@link #slabsAt(int, List, long, int, int[], List)}).
+ * All the slabs in a part of the grid where the leaves are not cut in color n are the same,
+ * so they are only computed once.
+ * <p>
+ * The paths are handled as numbers, so this only works with color paths of at most {@link #MAXLEN} symbols.
+ */
+final class GridReduction {
+
+	/**
+	 * Longest color path that can be handled
+	 */
+	static final int MAXLEN = 30;
+
+	/**
+	 * The largest color used by the tree pair
+	 */
+	private final int dim;
+
+	/**
+	 * The paths of the leaves of the left tree: paths[j][i] is the path of leaf j in color i, as a number
+	 */
+	private final long[][] paths;
+
+	/**
+	 * The lengths of the paths of the leaves: lengths[j][i] is the length of the path of leaf j in color i
+	 */
+	private final int[][] lengths;
+
+	/**
+	 * The class of each leaf, as an index in classes
+	 */
+	private final int[] classOf;
+
+	/**
+	 * The linear maps of the classes
+	 */
+	private final ArrayList<Affine> classes = new ArrayList<Affine>();
+
+	/**
+	 * Prepares the reduction of a pattern pair
+	 * @param map the Map between two patterns that defines a pattern pair
+	 * @param dim the largest color used by the patterns
+	 */
+	private GridReduction(Map<SuperPath, SuperPath> map, int dim)
+	{
+		this.dim = dim;
+		int n = map.size();
+		paths = new long[n][dim+1];
+		lengths = new int[n][dim+1];
+		classOf = new int[n];
+		HashMap<Affine, Integer> index = new HashMap<Affine, Integer>();
+		int j = 0;
+		for (Map.Entry<SuperPath, SuperPath> E:map.entrySet())
+		{
+			SuperPath L = E.getKey();
+			for (int i=1;i<=dim;i++)
+			{
+				lengths[j][i] = L.getColLength(i);
+				paths[j][i] = valueOf(L, i);
+			}
+			Affine A = new Affine(L, E.getValue(), dim);
+			Integer k = index.get(A);
+			if (k==null)
+			{
+				k = classes.size();
+				index.put(A, k);
+				classes.add(A);
+			}
+			classOf[j] = k;
+			j++;
+		}
+	}
+
+	/**
+	 * Computes the reduced pattern pair of a multidimensional tree pair
+	 * @param T the tree pair
+	 * @param mergeBlocks if false, the smallest grid is returned; if true, its blocks are merged
+	 * (see {@link TreePair#reduce(boolean)})
+	 * @return the reduced pattern pair, or null if the tree pair has a color path longer than MAXLEN
+	 */
+	static HashMap<SuperPath, SuperPath> reduce(TreePair T, boolean mergeBlocks) throws TreeNodeException
+	{
+		Map<SuperPath, SuperPath> map = T.getPermutation().getMap();
+		for (Map.Entry<SuperPath, SuperPath> E:map.entrySet())
+		{
+			if (!fits(E.getKey())||!fits(E.getValue()))
+			{
+				return null;
+			}
+		}
+		GridReduction G = new GridReduction(map, TreePair.dimensionOf(map));
+		int[] grid = G.smallestGrid();
+		HashMap<SuperPath, SuperPath> ans = new HashMap<SuperPath, SuperPath>();
+		if (mergeBlocks)
+		{
+			for (int k=0;k<G.classes.size();k++)
+			{
+				Affine A = G.classes.get(k);
+				ArrayList<SuperPath> blocks = new ArrayList<SuperPath>();
+				G.mergeGrid(G.dim, G.boxesOf(k, grid), A.floors, blocks);
+				for (SuperPath P:blocks)
+				{
+					ans.put(P, A.image(P));
+				}
+			}
+		}
+		else
+		{
+			for (int j=0;j<G.classOf.length;j++)
+			{
+				G.addCellsAt(G.box(j, grid), 1, grid, G.classes.get(G.classOf[j]), ans);
+			}
+		}
+		return ans;
+	}
+
+	/**
+	 * Tells whether all the color paths of a SuperPath are at most MAXLEN symbols long
+	 */
+	private static boolean fits(SuperPath P)
+	{
+		for (int i=1;i<=P.getDimension();i++)
+		{
+			if (P.getColLength(i)>MAXLEN)
+			{
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Finds the grid that the grid reduction of the full grid ends up with: for i=1,2,...,dim,
+	 * the depth of color i is decreased as long as each block of the grid is still in one class
+	 * and long enough for the maps of the classes.
+	 * @return the depths of the colors in the grid
+	 */
+	private int[] smallestGrid()
+	{
+		int[] grid = new int[dim+1];
+		int[] floor = new int[dim+1];
+		for (int j=0;j<classOf.length;j++)
+		{
+			for (int i=1;i<=dim;i++)
+			{
+				grid[i] = Math.max(grid[i], lengths[j][i]);
+			}
+		}
+		for (Affine A:classes)
+		{
+			for (int i=1;i<=dim;i++)
+			{
+				floor[i] = Math.max(floor[i], A.floors[i]);
+			}
+		}
+		for (int i=1;i<=dim;i++)
+		{
+			while (grid[i]>floor[i])
+			{
+				grid[i]--;
+				if (!separatesClasses(grid))
+				{
+					grid[i]++;
+					break;
+				}
+			}
+		}
+		return grid;
+	}
+
+	/**
+	 * Tells whether no block of a grid meets leaves of two different classes
+	 * @param grid the depths of the colors in the grid
+	 */
+	private boolean separatesClasses(int[] grid)
+	{
+		for (int j=0;j<classOf.length;j++)
+		{
+			for (int k=j+1;k<classOf.length;k++)
+			{
+				if ((classOf[j]!=classOf[k])&&meetSameBlock(j, k, grid))
+				{
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Tells whether some block of a grid meets both of two leaves
+	 * @param j a leaf
+	 * @param k another leaf
+	 * @param grid the depths of the colors in the grid
+	 */
+	private boolean meetSameBlock(int j, int k, int[] grid)
+	{
+		for (int i=1;i<=dim;i++)
+		{
+			int len = Math.min(grid[i], Math.min(lengths[j][i], lengths[k][i]));
+			if ((paths[j][i]>>>(lengths[j][i]-len))!=(paths[k][i]>>>(lengths[k][i]-len)))
+			{
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Returns the block of the pattern made of the blocks of a grid that meet a leaf
+	 * @param j the leaf
+	 * @param grid the depths of the colors in the grid
+	 */
+	private SuperPath box(int j, int[] grid) throws TreeNodeException
+	{
+		SuperPath P = new SuperPath();
+		for (int i=1;i<=dim;i++)
+		{
+			int len = Math.min(grid[i], lengths[j][i]);
+			appendPath(P, i, paths[j][i]>>>(lengths[j][i]-len), len);
+		}
+		return P;
+	}
+
+	/**
+	 * Returns the boxes of the leaves of a class (see {@link #box(int, int[])}), without repetitions
+	 * @param k the class
+	 * @param grid the depths of the colors in the grid
+	 */
+	private ArrayList<SuperPath> boxesOf(int k, int[] grid) throws TreeNodeException
+	{
+		HashSet<SuperPath> boxes = new HashSet<SuperPath>();
+		for (int j=0;j<classOf.length;j++)
+		{
+			if (classOf[j]==k)
+			{
+				boxes.add(box(j, grid));
+			}
+		}
+		return new ArrayList<SuperPath>(boxes);
+	}
+
+	/**
+	 * Adds all the blocks of a grid inside a box, with their images, to a pattern pair
+	 * @param P the box
+	 * @param i the first color in which the blocks have to be split
+	 * @param grid the depths of the colors in the grid
+	 * @param A the map on the box
+	 * @param map the pattern pair to add the blocks to
+	 */
+	private void addCellsAt(SuperPath P, int i, int[] grid, Affine A, Map<SuperPath, SuperPath> map) throws TreeNodeException
+	{
+		while ((i<=dim)&&(P.getColLength(i)==grid[i]))
+		{
+			i++;
+		}
+		if (i>dim)
+		{
+			if (!map.containsKey(P))
+			{
+				map.put(P, A.image(P));
+			}
+			return;
+		}
+		for (int b=0;b<2;b++)
+		{
+			SuperPath C = new SuperPath(P);
+			C.appendDown(i, b==0);
+			addCellsAt(C, i, grid, A, map);
+		}
+	}
+
+	/**
+	 * Merges, in rounds, the blocks of a grid that make up a part of the pattern in which
+	 * any two blocks can be merged when the result is long enough (a class, or a slab of a class)
+	 * @param k the largest color used; the colors above k are empty in all the blocks
+	 * @param boxes boxes made of blocks of the grid, whose union is the part of the pattern
+	 * @param floor floor[i] = the least number of symbols of color i that a merged block can have
+	 * @param out the list to add the merged blocks to
+	 */
+	private void mergeGrid(int k, List<SuperPath> boxes, int[] floor, List<SuperPath> out) throws TreeNodeException
+	{
+		if (boxes.isEmpty())
+		{
+			return;
+		}
+		if (k==0)
+		{
+			out.add(new SuperPath());
+			return;
+		}
+		for (SuperPath J:slabsAt(k, boxes, 0, 0, floor, out))
+		{
+			out.add(J);
+		}
+	}
+
+	/**
+	 * Merges the slabs of the part of the pattern inside a slab Z (the blocks whose path in color k
+	 * begins with the path of Z), up to the point where the blocks of Z are the ones of a slab with
+	 * the path of Z in color k. The blocks that end up in the thinner slabs are added to out.
+	 * @param k the color of the slabs
+	 * @param boxes the boxes that meet Z
+	 * @param z the path of Z in color k, as a number
+	 * @param zlen the length of the path of Z
+	 * @param floor the least number of symbols in each color that a merged block can have
+	 * @param out the list to add the merged blocks to
+	 * @return the blocks of the slab Z, without the path in color k; empty if blocks can not be merged up to Z
+	 */
+	private HashSet<SuperPath> slabsAt(int k, List<SuperPath> boxes, long z, int zlen, int[] floor, List<SuperPath> out) throws TreeNodeException
+	{
+		HashSet<SuperPath> ans = new HashSet<SuperPath>();
+		if (boxes.isEmpty())
+		{
+			return ans;
+		}
+		ArrayList<SuperPath> left = new ArrayList<SuperPath>();
+		ArrayList<SuperPath> right = new ArrayList<SuperPath>();
+		for (SuperPath B:boxes)
+		{
+			int len = B.getColLength(k);
+			if ((len<=zlen)||(B.symbolAt(k, zlen)==0))
+			{
+				left.add(B);
+			}
+			if ((len<=zlen)||(B.symbolAt(k, zlen)==1))
+			{
+				right.add(B);
+			}
+		}
+		if (left.size()+right.size()==2*boxes.size())	//no box is cut below Z: all the slabs in Z are the same
+		{
+			ArrayList<SuperPath> slab = new ArrayList<SuperPath>();
+			HashSet<SuperPath> projected = new HashSet<SuperPath>();
+			for (SuperPath B:boxes)
+			{
+				projected.add(truncate(B, k, 0));
+			}
+			mergeGrid(k-1, new ArrayList<SuperPath>(projected), floor, slab);
+			if (zlen>=floor[k])
+			{
+				ans.addAll(slab);
+			}
+			else	//the slabs can only be merged up to length floor[k]
+			{
+				int extra = floor[k]-zlen;
+				for (long w=0;w<(1L<<extra);w++)
+				{
+					for (SuperPath J:slab)
+					{
+						SuperPath P = new SuperPath(J);
+						appendPath(P, k, (z<<extra)|w, floor[k]);
+						out.add(P);
+					}
+				}
+			}
+			return ans;
+		}
+		HashSet<SuperPath> S0 = slabsAt(k, left, z<<1, zlen+1, floor, out);
+		HashSet<SuperPath> S1 = slabsAt(k, right, (z<<1)|1, zlen+1, floor, out);
+		if (zlen>=floor[k])
+		{
+			for (SuperPath J:S0)
+			{
+				if (S1.contains(J))
+				{
+					ans.add(J);
+				}
+			}
+			S0.removeAll(ans);
+			S1.removeAll(ans);
+			mergeRounds(k-1, ans, floor);
+		}
+		addSlab(S0, k, z<<1, zlen+1, out);
+		addSlab(S1, k, (z<<1)|1, zlen+1, out);
+		return ans;
+	}
+
+	/**
+	 * Adds the blocks of a slab to a list
+	 * @param blocks the blocks of the slab, without the path in color k
+	 * @param k the color of the slab
+	 * @param z the path of the slab in color k, as a number
+	 * @param zlen the length of the path
+	 * @param out the list to add the blocks to
+	 */
+	private static void addSlab(Collection<SuperPath> blocks, int k, long z, int zlen, List<SuperPath> out) throws TreeNodeException
+	{
+		for (SuperPath J:blocks)
+		{
+			SuperPath P = new SuperPath(J);
+			appendPath(P, k, z, zlen);
+			out.add(P);
+		}
+	}
+
+	/**
+	 * Merges blocks in rounds, as {@link TreePair#mergeBlocks(Map)} does, along colors 1..k,
+	 * where any two blocks can be merged if the result is long enough
+	 * @param k the largest color to merge along
+	 * @param blocks the blocks; replaced by the merged blocks
+	 * @param floor the least number of symbols in each color that a merged block can have
+	 */
+	private static void mergeRounds(int k, HashSet<SuperPath> blocks, final int[] floor) throws TreeNodeException
+	{
+		if ((k==0)||(blocks.size()<2))
+		{
+			return;
+		}
+		HashMap<SuperPath, SuperPath> map = new HashMap<SuperPath, SuperPath>();
+		for (SuperPath P:blocks)
+		{
+			map.put(P, P);
+		}
+		new BlockMerger<SuperPath>(map, k)
+		{
+			protected boolean canMerge(SuperPath L, SuperPath R, int color)
+			{
+				return (L.getColLength(color)>floor[color]);
+			}
+
+			protected SuperPath merge(SuperPath left, SuperPath right, int color)
+			{
+				return left;
+			}
+		}.mergeRounds();
+		blocks.clear();
+		blocks.addAll(map.keySet());
+	}
+
+	/**
+	 * Returns a copy of a SuperPath with the path in color i cut to a given length
+	 */
+	private static SuperPath truncate(SuperPath P, int i, int len) throws TreeNodeException
+	{
+		SuperPath C = new SuperPath(P);
+		for (int l=P.getColLength(i);l>len;l--)
+		{
+			C.goUp(i);
+		}
+		return C;
+	}
+
+	/**
+	 * Returns the path of a SuperPath in color i as a number (the first symbol is the most significant bit)
+	 */
+	private static long valueOf(SuperPath P, int i)
+	{
+		long v = 0;
+		for (int k=0;k<P.getColLength(i);k++)
+		{
+			v = (v<<1)|P.symbolAt(i, k);
+		}
+		return v;
+	}
+
+	/**
+	 * Appends a path, given as a number, to the path of a SuperPath in color i
+	 * @param P the SuperPath
+	 * @param i the color
+	 * @param v the path to append, as a number
+	 * @param len the length of the path to append
+	 */
+	private static void appendPath(SuperPath P, int i, long v, int len) throws TreeNodeException
+	{
+		for (int k=len-1;k>=0;k--)
+		{
+			P.appendDown(i, ((v>>>k)&1)==0);
+		}
+	}
+
+	/**
+	 * A linear map that takes a block of the left pattern onto a block of the right one.
+	 * <br>
+	 * In color i, it takes x to 2^shift[i]*x + num[i]/2^den[i], with num[i] odd or den[i]=0.
+	 * Two leaves are in the same class when their maps are equal.
+	 * <br>
+	 * A block is taken to a block iff it has at least floor[i] symbols in each color i.
+	 */
+	private static final class Affine
+	{
+		final int[] shift;
+		final long[] num;
+		final int[] den;
+		final int[] floors;
+
+		/**
+		 * Returns the map that takes a block L onto a block R
+		 */
+		Affine(SuperPath L, SuperPath R, int dim)
+		{
+			shift = new int[dim+1];
+			num = new long[dim+1];
+			den = new int[dim+1];
+			floors = new int[dim+1];
+			for (int i=1;i<=dim;i++)
+			{
+				int a = L.getColLength(i);
+				int b = R.getColLength(i);
+				shift[i] = a-b;
+				// the offset is R/2^b - L/2^a * 2^(a-b) = (R - L)/2^b
+				long n = valueOf(R, i)-valueOf(L, i);
+				int d = b;
+				while ((d>0)&&((n&1)==0))
+				{
+					n >>= 1;
+					d--;
+				}
+				num[i] = n;
+				den[i] = (n==0) ? 0 : d;
+				floors[i] = Math.max(0, shift[i]+den[i]);
+			}
+		}
+
+		/**
+		 * Returns the image of a block that has at least floor[i] symbols in each color i
+		 */
+		SuperPath image(SuperPath P) throws TreeNodeException
+		{
+			SuperPath Q = new SuperPath();
+			for (int i=1;i<shift.length;i++)
+			{
+				int len = P.getColLength(i);
+				int m = len-shift[i];
+				if ((m<0)||(m<den[i]))
+				{
+					throw new TreeNodeException("The block "+P+" is not mapped onto a block");
+				}
+				appendPath(Q, i, valueOf(P, i)+(num[i]<<(m-den[i])), m);
+			}
+			return Q;
+		}
+
+		public boolean equals(Object o)
+		{
+			Affine A = (Affine) o;
+			return Arrays.equals(shift, A.shift)&&Arrays.equals(num, A.num)&&Arrays.equals(den, A.den);
+		}
+
+		public int hashCode()
+		{
+			return 31*(31*Arrays.hashCode(shift)+Arrays.hashCode(num))+Arrays.hashCode(den);
+		}
+	}
+}
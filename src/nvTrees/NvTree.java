@@ -1,10 +1,10 @@
 package nvTrees;
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.Collections;
 import java.util.HashMap;
 import java.util.Random;
 import java.util.StringTokenizer;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
 
 import javax.swing.JOptionPane;
 
@@ -28,27 +28,67 @@ import javax.swing.JOptionPane;
 public class NvTree {
 	
 	/**
-	 * Maximum number of colors the tree can hold.
-	 * Do not set higher than 10: for convinience, 
-	 * one symbol = one color. Fix the corresponding 
-	 * string parsing code if you intend to use
-	 * more than 10 colors.
+	 * Upper bound on the colors a tree can hold: colors are 1..MAXCOL-1.
+	 * <br>
+	 * This is only a sanity limit (colors must fit in a byte); the dimension 
+	 * of a tree is the largest color it actually uses, and the SuperPaths and
+	 * color depth arrays are sized to that. In tree strings, colors 0..9 are
+	 * written as one digit, and larger colors as digits between underscores, e.g. _12_.
 	 */
-	static final int MAXCOL = 10;
+	static final int MAXCOL = 128;
 	
 	
 	/**
 	 * Holds the root node of the tree
+	 * <br>The structure of the tree should only be changed with {@link #addCaretAt(TreeNode, int)} 
+	 * and {@link #removeCaretAt(TreeNode)}, which keep the cached shape up to date.
 	 */
 	public TreeNode rootNode;
 	
+	/**
+	 * The shape of the tree, or null if it has to be recomputed (see {@link #getShape()})
+	 */
+	private TreeShape shape = null;
+	
+	/**
+	 * Index of the leaves by SuperPath, or null if it has not been built yet (see {@link #nodeBySuperPath(SuperPath)})
+	 */
+	private HashMap<SuperPath, TreeNode> leafIndex = null;
+	
+	/**
+	 * The permutation that last registered with this tree (see {@link TreePermutation#watchTrees()}), or null.
+	 * It may refer to the leaves by their order, so it is told before the tree changes.
+	 */
+	private TreePermutation watcher = null;
+	
+	/**
+	 * Number of tree pairs that use this tree (see {@link TreePair#inverseOf(TreePair)}). 
+	 * A pair copies a tree that is used by other pairs before it modifies it.
+	 */
+	private volatile int owners = 1;
+	
+	/**
+	 * Updates owners atomically, so that pairs in different threads can share and release a tree
+	 */
+	private static final AtomicIntegerFieldUpdater<NvTree> OWNERS = AtomicIntegerFieldUpdater.newUpdater(NvTree.class, "owners");
+	
+	
+	/**
+	 * Constructs an nV tree with a given root node
+	 * @param rootNode the root of the tree
+	 */
+	private NvTree(TreeNode rootNode)
+	{
+		this.rootNode = rootNode;
+	}
 	
 	/**
 	 * Constructs an nV tree from a string representation
 	 * <p>
 	 * <li>The structure string is obtained by the depth-first search of a 
 	 * tree, where 0 is written whenever a node
-	 * is a leaf and node color (1..9) is written otherwise. 
+	 * is a leaf and node color (1..9) is written otherwise.
+	 * <li>Colors 10 and above are written between underscores: _12_00 is a caret of color 12.  
 	 * @param structure Structure string
 	 */
 	public NvTree(String structure) throws TreeNodeException
@@ -75,10 +115,10 @@ public class NvTree {
 		}
 		
 		
-		String S = createTreeFromString(rootNode, structure);
-		if (S.length() > 0)
+		int end = createTreeFromString(rootNode, structure, 0);
+		if (end < structure.length())
 		{
-			throw new TreeNodeException("Leftover symbols left: "+S);
+			throw new TreeNodeException("Leftover symbols left: "+structure.substring(end));
 		}
 	}	
 	
@@ -88,39 +128,60 @@ public class NvTree {
 	 * of a tree
 	 * @param root the root node of the tree structure
 	 * @param structure String containing the tree structure
-	 * @return used internally to pass back the structure string as 
-	 * it is being processed
+	 * @param pos index in the structure string at which the subtree of root starts
+	 * @return the index in the structure string right after the subtree of root  
 	 */
-	private static String createTreeFromString(TreeNode root, String structure) throws TreeNodeException
+	private static int createTreeFromString(TreeNode root, String structure, int pos) throws TreeNodeException
 	{		
-		if (structure.length() > 0)
+		if (pos < structure.length())
 		{
-			String color = "" + structure.charAt(0);
-			try
+			int col;
+			int next;
+			char c = structure.charAt(pos);
+			if (c == '_') //a multi-digit color, like _12_
 			{
-				int col = Integer.valueOf(color).intValue();			
-				String S = structure.substring(1);
-				if (col == 0) //if the node is a leaf node...
+				next = structure.indexOf('_', pos+1);
+				if (next < 0)
+				{
+					throw new TreeNodeException("You have entered an inavalid tree description: " +
+							"\n the color at "+structure.substring(pos)+" is missing its closing _");
+				}
+				try
 				{
-					root.color = 0;
-					return S; //eat the first symbol and return
+					col = Integer.parseInt(structure.substring(pos+1, next));
 				}
-				else	//if the node is not a leaf node...
+				catch(NumberFormatException e)
 				{
-					root.color = col;
-					TreeNode left = new TreeNode(root, col, true);
-					TreeNode right = new TreeNode(root, col, false);				
-					root.left = left;
-					root.right = right;
-					S = createTreeFromString(left,S);
-					S = createTreeFromString(right,S);
-					return S;
+					throw new TreeNodeException("You have entered an inavalid tree description: " +
+							"\n the following color is not a number \n"+e.getMessage());
 				}
+				next++;
 			}
-			catch(NumberFormatException e)
+			else if ((c >= '0') && (c <= '9'))
+			{
+				col = c - '0';
+				next = pos+1;
+			}
+			else
 			{
 				throw new TreeNodeException("You have entered an inavalid tree description: " +
-						"\n the following character is not a digit \n"+e.getMessage());
+						"\n the following character is not a digit \n"+c);
+			}
+			if (col == 0) //if the node is a leaf node...
+			{
+				root.color = 0;
+				return next; //eat the first symbol and return
+			}
+			else	//if the node is not a leaf node...
+			{
+				root.color = col;
+				TreeNode left = new TreeNode(root, col, true);
+				TreeNode right = new TreeNode(root, col, false);				
+				root.left = left;
+				root.right = right;
+				next = createTreeFromString(left, structure, next);
+				next = createTreeFromString(right, structure, next);
+				return next;
 			}
 		}
 		else //if the structure string is empty, then something went wrong
@@ -129,13 +190,132 @@ public class NvTree {
 		}
 	}
 	
+	/**
+	 * Returns the symbol(s) that stand for a color in a tree string
+	 * @param col a color
+	 * @return the color digit for colors 0..9, and the color between underscores otherwise 
+	 */
+	public static String colorToken(int col)
+	{
+		if (col < 10)
+		{
+			return String.valueOf(col);
+		}
+		return "_"+col+"_";
+	}
+	
 	
 	/**
 	 * Counts the number of leaves in the tree
 	 */
 	public int getNumLeaves()
 	{
-		return rootNode.getNumLeaves();
+		return getShape().getNumLeaves();
+	}
+	
+	/**
+	 * Returns the shape of this tree. Trees with the same structure and colors
+	 * have the same shape object.
+	 * @return the (hash-consed) shape of this tree
+	 */
+	public TreeShape getShape()
+	{
+		if (shape == null)
+		{
+			shape = shapeAt(rootNode);
+		}
+		return shape;
+	}
+	
+	/**
+	 * Registers the permutation that should be told before this tree changes
+	 * @param P a permutation that refers to this tree, or null
+	 */
+	void setWatcher(TreePermutation P)
+	{
+		watcher = P;
+	}
+	
+	/**
+	 * Returns the permutation that is told before this tree changes
+	 * @return the permutation, or null if there is none
+	 */
+	TreePermutation getWatcher()
+	{
+		return watcher;
+	}
+	
+	/**
+	 * Adds a caret at a leaf of this tree. Does not change any permutation
+	 * that refers to this tree, except that the permutation registered with this tree
+	 * stops referring to the leaves by their order (see {@link TreePermutation#treeChanging(NvTree)}).
+	 * @param node a leaf of this tree
+	 * @param color the color of the new caret
+	 */
+	void addCaretAt(TreeNode node, int color) throws TreeNodeException
+	{
+		if (watcher != null)
+		{
+			watcher.treeChanging(this);
+		}
+		TreeNode l = new TreeNode(node,0,true);
+		TreeNode r = new TreeNode(node,0,false);
+		node.color = color;
+		node.left = l;
+		node.right = r;
+		shape = null;
+		if (leafIndex != null)
+		{
+			SuperPath P = node.getSuperpath();
+			leafIndex.remove(P);
+			SuperPath L = new SuperPath(P); L.appendDown(color, true);
+			SuperPath R = new SuperPath(P); R.appendDown(color, false);
+			leafIndex.put(L, l);
+			leafIndex.put(R, r);
+		}
+	}
+	
+	/**
+	 * Removes the caret at a node of this tree, making it a leaf. Does not change any permutation
+	 * that refers to this tree, except as in {@link #addCaretAt(TreeNode, int)}.
+	 * @param node a node of this tree
+	 */
+	void removeCaretAt(TreeNode node)
+	{
+		if (watcher != null)
+		{
+			watcher.treeChanging(this);
+		}
+		if ((leafIndex != null)&&(!node.isLeaf()))
+		{
+			if (node.left.isLeaf()&&node.right.isLeaf())
+			{
+				SuperPath P = node.getSuperpath();
+				SuperPath L = new SuperPath(P); 
+				SuperPath R = new SuperPath(P);
+				try
+				{
+					L.appendDown(node.color, true);
+					R.appendDown(node.color, false);
+				}
+				catch (TreeNodeException e)
+				{
+					//cannot happen: node colors are checked when the nodes are created
+					throw new IllegalStateException(e.getError());
+				}
+				leafIndex.remove(L);
+				leafIndex.remove(R);
+				leafIndex.put(P, node);
+			}
+			else
+			{
+				leafIndex = null; //a whole subtree is removed: rebuild the index when it is needed
+			}
+		}
+		node.color = 0;
+		node.left = null;
+		node.right = null;
+		shape = null;
 	}
 	
 	
@@ -154,19 +334,38 @@ public class NvTree {
 	 */
 	public static String getStringAt(TreeNode root)
 	{
-		String S ="";
-		S += root.color;
+		StringBuilder S = new StringBuilder();
+		appendStringAt(root, S);
+		return S.toString();
+	}
+	
+	/**
+	 * Appends the string representation of a subtree to a StringBuilder
+	 * @param root The root node of the subtree
+	 * @param S the StringBuilder to append to
+	 */
+	private static void appendStringAt(TreeNode root, StringBuilder S)
+	{
+		if (root.color < 10)
+		{
+			S.append((char)('0'+root.color));
+		}
+		else
+		{
+			S.append(colorToken(root.color));
+		}
 		if (!root.isLeaf()) 
 		{
-			S+=getStringAt(root.left);		
-			S+=getStringAt(root.right);
+			appendStringAt(root.left, S);		
+			appendStringAt(root.right, S);
 		}
-		return S;
 	}
 
 	/**
-	 * Gets color depths for each color 1..9
+	 * Gets color depths for each color used in the tree
 	 * <p>
+	 * <li>the array has one entry per color up to the largest color used in the tree,
+	 * i.e. its length is maxColorValue()+1
 	 * <li>result[0] = 1, always
 	 * <li>result[i] = maximum depth of color i, i.e. the largest amount
 	 * of times color i occurred on the path from the root to a leaf 
@@ -174,27 +373,35 @@ public class NvTree {
 	 */
 	public int[] getColorDepths()
 	{
-		return getColorDepthsAt(rootNode);
+		return getShape().getColorDepths();
 	}
 	/**
-	 * Gets the color depths in the subtree at the root node in the parameter
+	 * Gets the color depths in the subtree at the root node in the parameter.
+	 * They are read off the shape of the subtree, so they are computed once for all the subtrees with that shape.
 	 * @param root the root node of the subtree to check
 	 * @return the array containing color depths; see getColorDepths() for more details
 	 */
 	public static int [] getColorDepthsAt(TreeNode root)
 	{		
-		int[] depths = new int[MAXCOL];
-		depths[root.color]=1;
-		if (!root.isLeaf())
+		return shapeAt(root).getColorDepths();
+	}
+	
+	/**
+	 * Returns the shape of the subtree at a node
+	 * @param root the root of the subtree
+	 * @return the shape of the subtree
+	 */
+	private static TreeShape shapeAt(TreeNode root)
+	{
+		try
 		{
-			int[] left_depths = getColorDepthsAt(root.left);
-			int[] right_depths = getColorDepthsAt(root.right);
-			for (int i=0;i<depths.length;i++)
-			{
-				depths[i] +=Math.max(left_depths[i], right_depths[i]);
-			}
+			return TreeShape.of(root);
+		}
+		catch (TreeNodeException e)
+		{
+			//cannot happen: the colors of the nodes are checked when the nodes are created
+			throw new IllegalStateException(e.getError());
 		}
-		return depths;
 	}
 	
 	/**
@@ -222,24 +429,7 @@ public class NvTree {
 	 */	
 	public int maxColorValue()
 	{
-		return maxColorValueAt(this.rootNode);
-	}
-	
-	/**
-	 * Returns the largest color label in a subtree
-	 * @param node the root of the subtree 
-	 * @return the largest color value that appears in this tree 
-	 */	
-	private int maxColorValueAt(TreeNode node)
-	{
-		if (!node.isLeaf())
-		{
-			int L = maxColorValueAt(node.left);
-			int R = maxColorValueAt(node.right);
-			int C = node.color;
-			return Math.max(Math.max(L,R), C);
-		}
-		return 0;
+		return getShape().getMaxColor();
 	}
 	
 	/**
@@ -248,24 +438,17 @@ public class NvTree {
 	 */
 	public int getDepth()
 	{
-		return getDepthAt(rootNode);
+		return getShape().getDepth();
 	}
 	
 	/**
-	 * Returns the depth of the subtree at the node
+	 * Returns the depth of the subtree at the node, read off its shape
 	 * @param root the root of the subtree
 	 * @return depth at the subtree based at the root
 	 */
 	public static int getDepthAt(TreeNode root)
 	{
-		if (!root.isLeaf())
-		{
-			return 1+Math.max(getDepthAt(root.left), getDepthAt(root.right));
-		}
-		else
-		{
-			return 1;
-		}
+		return shapeAt(root).getDepth();
 	}
 	
 
@@ -274,7 +457,7 @@ public class NvTree {
 	
 	/**
 	 * Returns the array list that contains unique node labels
-	 * (stored in node.path field) of the LEAVES as they are being
+	 * (see {@link TreeNode#getPath()}) of the LEAVES as they are being
 	 * traversed Depth-First
 	 * @return DFS-ordered list of node path strings
 	 */
@@ -292,22 +475,37 @@ public class NvTree {
 	 * @param list the list to add node labels into
 	 */
 	public static void traverseDFSat (TreeNode root, ArrayList<String> list)
+	{
+		traverseDFSat(root, new StringBuilder(root.getPath()), list);
+	}
+	
+	/**
+	 * Traverses the subtree rooted at root depth-first, building the 
+	 * leaf node labels on the way down
+	 * @param root the root of the subtree to be searched
+	 * @param cur_path the path to root; it is modified during the traversal, but restored at the end
+	 * @param list the list to add node labels into
+	 */
+	private static void traverseDFSat (TreeNode root, StringBuilder cur_path, ArrayList<String> list)
 	{
 		if (root.isLeaf())
 		{
-			list.add(root.path);
+			list.add(cur_path.toString());
 		}
 		else
 		{
-			traverseDFSat(root.left, list);
-			traverseDFSat(root.right, list);
+			int len = cur_path.length();
+			cur_path.append('0');
+			traverseDFSat(root.left, cur_path, list);
+			cur_path.setCharAt(len, '1');
+			traverseDFSat(root.right, cur_path, list);
+			cur_path.setLength(len);
 		}
 	}
 	
 	/**
 	 * Returns a node by its path value; throws an exception if the tree does not contain such node.
-	 * @param path path to the node (also store in the node's path field; see {@link TreeNode} documentation
-	 * for details
+	 * @param path path to the node (see {@link TreeNode#getPath()} for details)
 	 * @return the node whose path was specified
 	 */
 	public TreeNode nodeByPath(String path) throws TreeNodeException
@@ -325,30 +523,16 @@ public class NvTree {
 	 */
 	public TreeNode nodeByPathAt(TreeNode start_node, String path) throws TreeNodeException
 	{
-		if (path.length() > 0)
+		TreeNode node = start_node;
+		for (int k=0;k<path.length();k++)
 		{
-			if (start_node.isLeaf())
+			if (node.isLeaf())
 			{
 				throw new TreeNodeException("No leaf with such path !");
 			}
-			else
-			{
-				char c = path.charAt(0);
-				String S = path.substring(1);
-				if (c=='0')
-				{
-					return nodeByPathAt(start_node.left,S);
-				}
-				else
-				{
-					return nodeByPathAt(start_node.right,S);
-				}
-			}
-		}
-		else
-		{
-			return start_node;
+			node = (path.charAt(k)=='0') ? node.left : node.right;
 		}
+		return node;
 	}
 		
 	/**
@@ -358,12 +542,12 @@ public class NvTree {
 	 */
 	public static String arrayToString(int[] A)
 	{
-		String S="";
+		StringBuilder S = new StringBuilder();
 		for (int i=0;i<A.length;i++)
 		{
-			S+=A[i]+" ";
+			S.append(A[i]).append(' ');
 		}
-		return S;
+		return S.toString();
 	}
 	
 	
@@ -376,7 +560,7 @@ public class NvTree {
 	public ArrayList<SuperPath>detailedDFS()
 	{
 		 ArrayList<SuperPath> ans = new ArrayList<SuperPath>();
-		 String[] cur_path = new String[MAXCOL];
+		 SuperPath cur_path = new SuperPath();
 		 try
 		 {
 			 detailedDFSAt(this.rootNode, ans, cur_path);
@@ -392,39 +576,87 @@ public class NvTree {
 	 * Does a detailed DFS of the subtree at the root, and fills the ans array with Superpaths
 	 * @param root  the root of the subtree to search
 	 * @param ans a list to be filled with SuperPaths to each node in the order of discovery
-	 * @param cur_path superpath to root's parent (empty array if root is actually a tree root) - an array of size NvTree.MAXCOL 
-	 * @throws TreeNodeException if you try to invoke this method with null-reference or small array
+	 * @param cur_path superpath to root (empty if root is actually a tree root); it is modified
+	 * during the search, and restored when the search is done
+	 * @throws TreeNodeException if you try to invoke this method with null-reference
 	 */
-	public static void detailedDFSAt(TreeNode root, ArrayList<SuperPath> ans, String[] cur_path) throws TreeNodeException
+	public static void detailedDFSAt(TreeNode root, ArrayList<SuperPath> ans, SuperPath cur_path) throws TreeNodeException
 	{  
-		if ((cur_path==null)||(cur_path.length < MAXCOL))
+		if (cur_path==null)
 		{			
-			throw new TreeNodeException("You tried to call Detailed DFS with invalid cur_path argument: \n must be an array of size "+MAXCOL);
+			throw new TreeNodeException("You tried to call Detailed DFS with un-initialized cur_path argument: \n must be a non-null SuperPath");
 		}
 		if (ans==null)
 		{			
 			throw new TreeNodeException("You tried to call Detailed DFS with un-initialized ans argument: \n must be an non-null array list");
 		}
 		
-		int col = root.color;				
-		String rollback = "";
-		if (cur_path[col]!=null) {rollback= cur_path[col];}
-		
 		if (root.isLeaf())
 		{
-			SuperPath P = new SuperPath(cur_path);
-			ans.add(P);
+			ans.add(new SuperPath(cur_path));
 		}
 		else
 		{
-			cur_path[col] = rollback+'0';
+			int col = root.color;
+			cur_path.appendDown(col, true);
 			detailedDFSAt(root.left, ans, cur_path);
-			cur_path[col] = rollback+'1';
+			cur_path.goUp(col);
+			cur_path.appendDown(col, false);
 			detailedDFSAt(root.right, ans, cur_path);
-			cur_path[col] = rollback;
+			cur_path.goUp(col);
+		}
+	}
+	
+	/**
+	 * Finds the leaves of this tree whose blocks meet a given block.
+	 * <br>
+	 * The tree is used as an index of its pattern: a subtree is only searched 
+	 * if its block meets the given block, so only the leaves that are found and their ancestors are visited.
+	 * @param P the SuperPath of a block
+	 * @return SuperPaths of the leaves that meet P, in depth-first order
+	 */
+	public ArrayList<SuperPath> blocksMeeting(SuperPath P) throws TreeNodeException
+	{
+		ArrayList<SuperPath> ans = new ArrayList<SuperPath>();
+		blocksMeetingAt(this.rootNode, P, ans, new SuperPath());
+		return ans;
+	}
+	
+	/**
+	 * Finds the leaves of a subtree whose blocks meet a given block
+	 * @param root the root of the subtree; its block must meet P
+	 * @param P the SuperPath of a block
+	 * @param ans a list to add the SuperPaths of the leaves to
+	 * @param cur_path superpath to root; it is modified during the search, and restored when the search is done
+	 */
+	private static void blocksMeetingAt(TreeNode root, SuperPath P, ArrayList<SuperPath> ans, SuperPath cur_path) throws TreeNodeException
+	{
+		if (root.isLeaf())
+		{
+			ans.add(new SuperPath(cur_path));
+			return;
+		}
+		int col = root.color;
+		int len = cur_path.getColLength(col);
+		boolean left = true;	//if P is not cut in color col at this depth, both children meet it
+		boolean right = true;
+		if (P.getColLength(col)>len)
+		{
+			left = (P.symbolAt(col, len)==0);
+			right = !left;
+		}
+		if (left)
+		{
+			cur_path.appendDown(col, true);
+			blocksMeetingAt(root.left, P, ans, cur_path);
+			cur_path.goUp(col);
+		}
+		if (right)
+		{
+			cur_path.appendDown(col, false);
+			blocksMeetingAt(root.right, P, ans, cur_path);
+			cur_path.goUp(col);
 		}
-		
-		cur_path[col] = rollback;
 	}
 	
 	/**
@@ -435,9 +667,42 @@ public class NvTree {
 	 */
 	public TreeNode nodeBySuperPath(SuperPath spath) throws TreeNodeException
 	{
+		if (leafIndex == null)
+		{
+			leafIndex = new HashMap<SuperPath, TreeNode>();
+			indexLeavesAt(rootNode, new SuperPath());
+		}
+		TreeNode leaf = leafIndex.get(spath);
+		if (leaf != null)
+		{
+			return leaf;
+		}
 		return nodeBySuperPathAt(this.rootNode, spath);
 	}
 	
+	/**
+	 * Puts the leaves of a subtree in the leaf index
+	 * @param root the root of the subtree
+	 * @param cur_path superpath to root; it is modified, but restored to its original value at the end
+	 */
+	private void indexLeavesAt(TreeNode root, SuperPath cur_path) throws TreeNodeException
+	{
+		if (root.isLeaf())
+		{
+			leafIndex.put(new SuperPath(cur_path), root);
+		}
+		else
+		{
+			int col = root.color;
+			cur_path.appendDown(col, true);
+			indexLeavesAt(root.left, cur_path);
+			cur_path.goUp(col);
+			cur_path.appendDown(col, false);
+			indexLeavesAt(root.right, cur_path);
+			cur_path.goUp(col);
+		}
+	}
+	
 	/**
 	 * Returns the leaf given its SuperPath relative to the given root 
 	 * @param root the root of the subtree to search
@@ -446,36 +711,23 @@ public class NvTree {
 	 */
 	public static TreeNode nodeBySuperPathAt(TreeNode root, SuperPath spath) throws TreeNodeException 
 	{
-		int col = root.color;
-		SuperPath cur_path = new SuperPath(spath);
-		if (!spath.isEmpty())
+		int dim = spath.getDimension();
+		int[] used = new int[dim+1];	//number of symbols of each color read so far
+		int remaining = spath.sizeLog();
+		TreeNode node = root;
+		while (remaining > 0)
 		{
-			if (root.isLeaf())
+			int col = node.color;
+			if (node.isLeaf()||(col>dim)||(used[col]>=spath.getColLength(col)))
 			{
 				throw new TreeNodeException("No node with such path !");
 			}
-			else
-			{
-				
-				char c = cur_path.getColPath(col).charAt(0);
-
-				cur_path.eatDown(col);
-				
-				if (c=='0')
-				{
-					return nodeBySuperPathAt(root.left,cur_path);
-				}
-				else
-				{
-					return nodeBySuperPathAt(root.right,cur_path);
-				}			
-			}
+			int c = spath.symbolAt(col, used[col]);
+			used[col]++;
+			remaining--;
+			node = (c==0) ? node.left : node.right;
 		}
-		else
-		{
-			return root;
-		}
-		
+		return node;
 	}
 	
 	/**
@@ -489,14 +741,58 @@ public class NvTree {
 		return nodeByPath(path).getSuperpath();
 	}
 		
-	//TODO: this is inefficient. Rewrite code to copy, not to construct/deconstruct a string!
 	/**
 	 * Provides a duplicate of this tree
 	 * @return a deep copy of this NvTree
 	 */
 	public NvTree duplicate() throws TreeNodeException 
 	{		
-		return new NvTree(this.toString());
+		NvTree copy = new NvTree(copyAt(this.rootNode, null, true));
+		copy.shape = this.shape;
+		return copy;
+	}
+	
+	/**
+	 * Records that one more tree pair uses this tree
+	 */
+	void share()
+	{
+		OWNERS.incrementAndGet(this);
+	}
+	
+	/**
+	 * Records that a tree pair no longer uses this tree
+	 */
+	void release()
+	{
+		OWNERS.decrementAndGet(this);
+	}
+	
+	/**
+	 * Tells whether this tree is used by more than one tree pair
+	 * @return true if a pair has to copy this tree before modifying it
+	 */
+	boolean isShared()
+	{
+		return owners > 1;
+	}
+	
+	/**
+	 * Copies the subtree at a node, node by node
+	 * @param root the root of the subtree to copy
+	 * @param parent the parent of the copy (null for a tree root)
+	 * @param isLeftChild is the copy the left child of parent ?
+	 * @return the root of the copy
+	 */
+	private static TreeNode copyAt(TreeNode root, TreeNode parent, boolean isLeftChild) throws TreeNodeException
+	{
+		TreeNode copy = new TreeNode(parent, root.color, isLeftChild);
+		if (!root.isLeaf())
+		{
+			copy.left = copyAt(root.left, copy, true);
+			copy.right = copyAt(root.right, copy, false);
+		}
+		return copy;
 	}
 	
 	/**
@@ -509,6 +805,10 @@ public class NvTree {
 	{
 		if ((A!=null)&&(B!=null))
 		{
+			if (A.getShape()==B.getShape())
+			{
+				return true;
+			}
 			ArrayList<SuperPath>P = A.detailedDFS();
 			ArrayList<SuperPath>Q = B.detailedDFS();
 			return (P.containsAll(Q)&&Q.containsAll(P));
@@ -525,83 +825,134 @@ public class NvTree {
 	 * Constructs an NvTree from a pattern (collection of superpaths,
 	 * as returened by detailedDFS()).
 	 * <br>
-	 * The algorithms is as follows:
-	 * <li>Create a list of SuperPaths for each color and sort it with a corresponding
-	 * comparator
-	 * <li>Search the first list for adjacent blocks and merge them. Update the other lists.
-	 * Since the lists were sorted with a nice comparator, blocks adjacent along color i
-	 * will be adjacent in list i.
-	 * <li>Whenever no merges are made, move to the next color
-	 * <li>Whenver a merge is made, reset (go to the beginning of the list for color 1)
+	 * The blocks are merged bottom-up, in rounds:
+	 * <li>Find the smallest color i such that some two blocks form a caret of color i
+	 * (i.e. are adjacent along color i, see {@link SuperPath#getSibling(int)})
+	 * <li>Merge all such pairs of blocks along color i
+	 * <li>Repeat until there is one block left
+	 * <br>
+	 * For each color, the blocks that have their sibling in the pattern are kept in a work list,
+	 * which is updated when blocks are merged, so the siblings are found by hash lookups
+	 * instead of sorting. This takes O(n*dim) hash lookups for a pattern with n blocks. 
+	 * <p>
+	 * Merging greedily can get stuck on some patterns: two blocks that are adjacent along a color 
+	 * do not always form a caret in the tree. Then the tree is built top-down instead, 
+	 * by splitting the pattern along the smallest color that cuts all of its blocks
+	 * (see {@link #splitPatternAt(ArrayList, int[], int)}). 
 	 * @param pattern a collection of superpaths that forms a tree
 	 * @return a tree that represents this pattern with all leaf-root paths being
 	 * alphabetically smallest ones.
+	 * @exception TreeNodeException if the blocks do not form a pattern
 	 */
 	public static NvTree fromPattern(Collection<SuperPath> pattern) throws TreeNodeException	
 	{
-		 ArrayList<SuperPath> blocks= new ArrayList<SuperPath>(pattern);
 		/*
 		 * We shall store the partial tree here
 		 */
 		HashMap<SuperPath, TreeNode>nodes = new HashMap<SuperPath, TreeNode>();
 		for (SuperPath P:pattern)
 		{
-			TreeNode tn = new TreeNode(null,0,false);
-			nodes.put(P, tn);
+			if (nodes.put(P, new TreeNode(null,0,false)) != null)
+			{
+				throw new TreeNodeException("The blocks do not form a pattern: the block \n"+P+" occurs twice");
+			}
+		}
+		if (nodes.isEmpty())
+		{
+			throw new TreeNodeException("The blocks do not form a pattern: there are no blocks");
 		}
 		
-		int i=0;
-		int curcol = 1;		
-		boolean found = false;
-		Collections.sort(blocks, new SuperPathComparator(curcol));
-		while (blocks.size()>1)	//the goal is to merge all the blocks int ONE square 
-		{	 
-			SuperPath L = blocks.get(i);			
-			SuperPath R = blocks.get(i+1);
-			int c = L.isAdjacentTo(R);		//if L is adjacent to R, c is the color along which they're adjacent
-			if (c==curcol)
+		int dim = 1;
+		for (SuperPath P:pattern)
+		{
+			dim = Math.max(dim, P.getDimension());
+		}
+		BlockMerger<TreeNode> merger = new BlockMerger<TreeNode>(nodes, dim)
+		{
+			protected boolean canMerge(SuperPath L, SuperPath R, int color)
 			{
-				found = true;				
-				TreeNode parent = new TreeNode(null,curcol,false);
-				TreeNode left = nodes.get(L);
-				TreeNode right = nodes.get(R);
-				parent.left = left;
-				parent.right = right;
-				nodes.remove(L);
-				nodes.remove(R);
-				SuperPath LRMerged = new SuperPath(L); 
-				LRMerged.goUp(c);
-				nodes.put(LRMerged, parent);				
-				blocks.remove(R);
-				blocks.remove(L);
-				blocks.add(LRMerged);							
-				Collections.sort(blocks, new SuperPathComparator(curcol));
+				return true;
 			}
-			if (i<blocks.size()-2){i++;} else 
-			{				
-				if (!found)
+			
+			protected TreeNode merge(TreeNode left, TreeNode right, int color) throws TreeNodeException
+			{
+				TreeNode parent = new TreeNode(null,color,false);
+				parent.attach(left, right);
+				return parent;
+			}
+		};
+		merger.mergeRounds();	//the goal is to merge all the blocks int ONE square 
+		if (nodes.size()>1)	//stuck: build the tree top-down
+		{
+			return new NvTree(splitPatternAt(new ArrayList<SuperPath>(pattern), new int[dim+1], dim));
+		}
+		SuperPath top = nodes.keySet().iterator().next();
+		if (!top.isEmpty())
+		{
+			throw new TreeNodeException("The blocks do not form a pattern: they only cover the block \n"+top);
+		}
+		return new NvTree(nodes.get(top));
+	}
+	
+	/**
+	 * Builds the tree of a part of a pattern top-down: the blocks are split in two 
+	 * along the smallest color that cuts all of them, and each half is built recursively.
+	 * @param blocks the blocks in the part of the pattern
+	 * @param used used[i] = number of symbols of color i that are already used up by the 
+	 * carets above; all the blocks agree on these symbols
+	 * @param dim the dimension of the pattern
+	 * @return the root of the tree of this part of the pattern
+	 * @exception TreeNodeException if the blocks do not form a pattern
+	 */
+	private static TreeNode splitPatternAt(ArrayList<SuperPath> blocks, int[] used, int dim) throws TreeNodeException
+	{
+		if (blocks.size()==1)
+		{
+			SuperPath P = blocks.get(0);
+			for (int i=1;i<=dim;i++)
+			{
+				if (P.getColLength(i)!=used[i])
 				{
-					curcol++;
-					if (curcol>=MAXCOL){curcol=1;} 
-					Collections.sort(blocks, new SuperPathComparator(curcol));
+					throw new TreeNodeException("The blocks do not form a pattern: the block \n"+P+" does not fill its part of the square");
 				}
-				else {curcol = 1;}
-				found = false;
-				i=0;
 			}
-			
+			return new TreeNode(null,0,false);
+		}
+		int col = 0;
+		for (int i=1;(i<=dim)&&(col==0);i++)
+		{
+			col = i;
+			for (SuperPath P:blocks)
+			{
+				if (P.getColLength(i)<=used[i])
+				{
+					col = 0;
+					break;
+				}
+			}
+		}
+		if (col==0)
+		{
+			throw new TreeNodeException("The blocks do not form a pattern: no color splits all the blocks \n"+blocks+"\n"
+					+" so they are not a dyadic pattern (they may also overlap)");
+		}
+		ArrayList<SuperPath> L = new ArrayList<SuperPath>();
+		ArrayList<SuperPath> R = new ArrayList<SuperPath>();
+		for (SuperPath P:blocks)
+		{
+			if (P.symbolAt(col, used[col])==0) {L.add(P);} else {R.add(P);}
+		}
+		if (L.isEmpty()||R.isEmpty())
+		{
+			throw new TreeNodeException("The blocks do not form a pattern: half of the block above \n"+blocks.get(0)+"\n is not covered");
 		}
-			SuperPath top = blocks.get(0);		
-			TreeNode root = nodes.get(top);
-			return new NvTree(getStringAt(root));
-			/**
-			 * TODO FIXME
-			 * There is no check or error handling of whether the list of blocks actually forms 
-			 * a pattern. If it doesn't, the algorithm simply loops forever - no good.
-			 * <br>
-			 * The code is unoptimal. Instead of re-sorting one list,
-			 * one could maintain several sorted lists.
-			 */
+		used[col]++;
+		TreeNode left = splitPatternAt(L, used, dim);
+		TreeNode right = splitPatternAt(R, used, dim);
+		used[col]--;
+		TreeNode node = new TreeNode(null,col,false);
+		node.attach(left, right);
+		return node;
 	}
 	
 	
@@ -636,7 +987,7 @@ public class NvTree {
 				String S1  = blocks.get(i1);
 				String S2 =  blocks.get(i2);
 				blocks.remove(S1); blocks.remove(S2);
-				String S = c+S1+S2;
+				String S = colorToken(c)+S1+S2;
 				blocks.add(S);
 			}
 			String treeStr = blocks.get(0);
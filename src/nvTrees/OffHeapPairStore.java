@@ -0,0 +1,493 @@
+package nvTrees;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+
+/**
+ * Stores a set of tree pairs outside of the Java heap, as compact byte strings
+ * (see {@link TreePairSet#TreePairSet(boolean)}).
+ * <p>
+ * A pair with n leaves is encoded as n, the largest color, the shapes of the two trees
+ * (the preorder bit vectors of their {@link SuccinctNvTree}s), the colors of the carets (only if some color
+ * is larger than 1), and the permutation (ceil(log2 n) bits per leaf). Two pairs are identical
+ * exactly when their encodings are the same. The encodings are appended to direct buffers of up to
+ * SEGMENT bytes, and looked up by fingerprint in an open-addressing hash table, which is kept in direct buffers
+ * of up to 2^TABLE_SHIFT slots, so that it can grow beyond the 2GB that a single buffer can hold.
+ * So the garbage collector only sees a few buffer objects, however many pairs there are, and a pair
+ * takes its encoding plus about 40 bytes.
+ * <p>
+ * The store can be shared by several threads. A pair is fingerprinted and encoded before the lock is taken,
+ * so the threads only hold the lock while they probe and insert.
+ */
+final class OffHeapPairStore {
+
+	/**
+	 * Largest size of a segment of the encodings, in bytes. The first segment is small, and each new one
+	 * is twice as large as the last one, up to this size. An encoding that does not fit gets a segment of its own.
+	 */
+	private static final int SEGMENT = 1<<26;
+
+	/**
+	 * Each buffer of the hash table holds at most 2^TABLE_SHIFT slots (1GB)
+	 */
+	private static final int TABLE_SHIFT = 26;
+
+	/**
+	 * The segments that hold the encodings. Each encoding is stored as its length (an int) followed by its bytes.
+	 */
+	private final ArrayList<ByteBuffer> segments = new ArrayList<ByteBuffer>();
+
+	/**
+	 * The hash table: slot i is in the buffer i/2^TABLE_SHIFT, and holds the fingerprint of a pair and
+	 * the address of its encoding plus 1, as two longs; an address of 0 marks an empty slot.
+	 * The address of an encoding is (segment index)*2^32 + (offset in the segment).
+	 */
+	private ByteBuffer[] table;
+
+	/**
+	 * Number of slots in the table; a power of 2
+	 */
+	private long capacity;
+
+	/**
+	 * Number of pairs stored
+	 */
+	private int size = 0;
+
+	/**
+	 * Creates an empty store
+	 */
+	OffHeapPairStore()
+	{
+		capacity = 1<<10;
+		table = allocateTable(capacity);
+		segments.add(ByteBuffer.allocateDirect(1<<16));
+	}
+
+	/**
+	 * Adds a tree pair to the store, unless an identical pair is already there
+	 * @param T a tree pair
+	 * @return true if the pair was added, false if it was already in the store
+	 */
+	boolean add(TreePair T) throws TreeNodeException
+	{
+		return insert(T.fingerprint(), encode(T));
+	}
+
+	/**
+	 * Adds an encoded pair to the store, unless it is already there
+	 * @param key the fingerprint of the pair
+	 * @param code the encoding of the pair (see {@link #encode(TreePair)})
+	 * @return true if the pair was added, false if it was already in the store
+	 */
+	private synchronized boolean insert(long key, byte[] code) throws TreeNodeException
+	{
+		long slot = find(key, code);
+		if (address(table, slot) != 0)
+		{
+			return false;
+		}
+		if (size == Integer.MAX_VALUE)
+		{
+			throw new TreeNodeException("Cannot store more than "+Integer.MAX_VALUE+" tree pairs");
+		}
+		put(table, slot, key, append(code)+1);
+		size++;
+		if (2L*size > capacity)
+		{
+			grow();
+		}
+		return true;
+	}
+
+	/**
+	 * Tells whether the store contains a pair identical to a given one
+	 * @param T a tree pair
+	 * @return true if an identical pair is in the store
+	 */
+	boolean contains(TreePair T) throws TreeNodeException
+	{
+		return lookup(T.fingerprint(), encode(T));
+	}
+
+	/**
+	 * Tells whether the store contains an encoded pair
+	 * @param key the fingerprint of the pair
+	 * @param code the encoding of the pair
+	 * @return true if the pair is in the store
+	 */
+	private synchronized boolean lookup(long key, byte[] code)
+	{
+		return (address(table, find(key, code)) != 0);
+	}
+
+	/**
+	 * Returns the number of pairs in the store
+	 */
+	synchronized int size()
+	{
+		return size;
+	}
+
+	/**
+	 * Decodes all the pairs in the store
+	 * @return a new list containing the pairs
+	 */
+	synchronized ArrayList<TreePair> toList() throws TreeNodeException
+	{
+		ArrayList<TreePair> ans = new ArrayList<TreePair>();
+		for (long slot=0;slot<capacity;slot++)
+		{
+			long a = address(table, slot);
+			if (a != 0)
+			{
+				ans.add(decode(read(a-1)));
+			}
+		}
+		return ans;
+	}
+
+	/**
+	 * Finds the slot of a pair in the table: the slot that holds it, or the empty slot where it should go
+	 * @param key the fingerprint of the pair
+	 * @param code the encoding of the pair
+	 * @return the index of the slot
+	 */
+	private long find(long key, byte[] code)
+	{
+		long slot = TreeShape.mix(key, 0) & (capacity-1);
+		while (true)
+		{
+			long a = address(table, slot);
+			if (a == 0)
+			{
+				return slot;
+			}
+			if ((keyAt(table, slot) == key) && sameCode(a-1, code))
+			{
+				return slot;
+			}
+			slot = (slot+1) & (capacity-1);
+		}
+	}
+
+	/**
+	 * Returns the address stored in a slot of a table, plus 1
+	 * @param T the buffers of the table
+	 * @param slot the index of the slot
+	 * @return 0 if the slot is empty
+	 */
+	private static long address(ByteBuffer[] T, long slot)
+	{
+		return T[(int)(slot>>>TABLE_SHIFT)].getLong(16*(int)(slot&((1<<TABLE_SHIFT)-1))+8);
+	}
+
+	/**
+	 * Returns the fingerprint stored in a slot of a table
+	 * @param T the buffers of the table
+	 * @param slot the index of the slot
+	 */
+	private static long keyAt(ByteBuffer[] T, long slot)
+	{
+		return T[(int)(slot>>>TABLE_SHIFT)].getLong(16*(int)(slot&((1<<TABLE_SHIFT)-1)));
+	}
+
+	/**
+	 * Fills a slot of a table
+	 * @param T the buffers of the table
+	 * @param slot the index of the slot
+	 * @param key the fingerprint of the pair
+	 * @param a the address of its encoding plus 1
+	 */
+	private static void put(ByteBuffer[] T, long slot, long key, long a)
+	{
+		ByteBuffer B = T[(int)(slot>>>TABLE_SHIFT)];
+		int pos = 16*(int)(slot&((1<<TABLE_SHIFT)-1));
+		B.putLong(pos, key);
+		B.putLong(pos+8, a);
+	}
+
+	/**
+	 * Allocates the buffers of an empty table
+	 * @param capacity the number of slots; a power of 2
+	 * @return the buffers
+	 */
+	private static ByteBuffer[] allocateTable(long capacity)
+	{
+		long perBuffer = Math.min(capacity, 1L<<TABLE_SHIFT);
+		ByteBuffer[] T = new ByteBuffer[(int)(capacity/perBuffer)];
+		for (int i=0;i<T.length;i++)
+		{
+			T[i] = ByteBuffer.allocateDirect(16*(int)perBuffer);
+		}
+		return T;
+	}
+
+	/**
+	 * Doubles the size of the table
+	 */
+	private void grow()
+	{
+		ByteBuffer[] old = table;
+		long oldCapacity = capacity;
+		capacity = 2*capacity;
+		table = allocateTable(capacity);
+		for (long i=0;i<oldCapacity;i++)
+		{
+			long a = address(old, i);
+			if (a != 0)
+			{
+				long key = keyAt(old, i);
+				long slot = TreeShape.mix(key, 0) & (capacity-1);
+				while (address(table, slot) != 0)
+				{
+					slot = (slot+1) & (capacity-1);
+				}
+				put(table, slot, key, a);
+			}
+		}
+	}
+
+	/**
+	 * Appends an encoding to the last segment, or to a new one if it does not fit
+	 * @param code the encoding
+	 * @return the address of the encoding
+	 */
+	private long append(byte[] code)
+	{
+		ByteBuffer S = segments.get(segments.size()-1);
+		if (S.remaining() < 4+code.length)
+		{
+			S = ByteBuffer.allocateDirect(Math.max(Math.min(SEGMENT, 2*S.capacity()), 4+code.length));
+			segments.add(S);
+		}
+		long a = (((long)(segments.size()-1))<<32) + S.position();
+		S.putInt(code.length);
+		S.put(code);
+		return a;
+	}
+
+	/**
+	 * Tells whether the encoding at an address is equal to a given one
+	 * @param a the address
+	 * @param code the encoding to compare with
+	 * @return true if they are the same
+	 */
+	private boolean sameCode(long a, byte[] code)
+	{
+		ByteBuffer S = segments.get((int)(a>>>32));
+		int pos = (int) a;
+		if (S.getInt(pos) != code.length)
+		{
+			return false;
+		}
+		pos += 4;
+		for (int i=0;i<code.length;i++)
+		{
+			if (S.get(pos+i) != code[i])
+			{
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Reads the encoding at an address
+	 * @param a the address
+	 * @return a copy of the encoding
+	 */
+	private byte[] read(long a)
+	{
+		ByteBuffer S = segments.get((int)(a>>>32));
+		int pos = (int) a;
+		byte[] code = new byte[S.getInt(pos)];
+		pos += 4;
+		for (int i=0;i<code.length;i++)
+		{
+			code[i] = S.get(pos+i);
+		}
+		return code;
+	}
+
+	/**
+	 * Encodes a tree pair as a byte string
+	 * @param T a tree pair
+	 * @return the encoding of T
+	 */
+	static byte[] encode(TreePair T) throws TreeNodeException
+	{
+		int[] perm = T.getPermutation().toArray();
+		int n = perm.length;
+		int maxcol = Math.max(T.left_tree.maxColorValue(), T.right_tree.maxColorValue());
+		int w = widthOf(n);
+		long bits = 2L*(2*n-1) + ((maxcol>1) ? 2L*8*(n-1) : 0) + (long)n*w;
+		BitWriter out = new BitWriter(6 + (int)((bits+7)/8));
+		out.write(n, 32);
+		out.write(maxcol, 8);
+		SuccinctNvTree L = new SuccinctNvTree(T.left_tree);
+		SuccinctNvTree R = new SuccinctNvTree(T.right_tree);
+		writeShape(L, out);
+		writeShape(R, out);
+		if (maxcol>1)
+		{
+			writeColors(L, out);
+			writeColors(R, out);
+		}
+		for (int i=0;i<n;i++)
+		{
+			out.write(perm[i]-1, w);
+		}
+		return out.bytes;
+	}
+
+	/**
+	 * Decodes a tree pair
+	 * @param code the encoding of a tree pair
+	 * @return a new tree pair identical to the one that was encoded
+	 */
+	static TreePair decode(byte[] code) throws TreeNodeException
+	{
+		BitReader in = new BitReader(code);
+		int n = (int) in.read(32);
+		int maxcol = (int) in.read(8);
+		int size = 2*n-1;
+		long[] L = readShape(size, in);
+		long[] R = readShape(size, in);
+		byte[] Lcolors = readColors(n-1, maxcol, in);
+		byte[] Rcolors = readColors(n-1, maxcol, in);
+		int w = widthOf(n);
+		int[] perm = new int[n];
+		for (int i=0;i<n;i++)
+		{
+			perm[i] = (int) in.read(w) + 1;
+		}
+		NvTree left = new SuccinctNvTree(L, size, Lcolors).toNvTree();
+		NvTree right = new SuccinctNvTree(R, size, Rcolors).toNvTree();
+		return new TreePair(new TreePermutation(left, right, perm));
+	}
+
+	/**
+	 * Returns the number of bits needed to write 0..n-1
+	 */
+	private static int widthOf(int n)
+	{
+		return 32 - Integer.numberOfLeadingZeros(Math.max(n-1, 1));
+	}
+
+	/**
+	 * Writes the shape of a tree: a bit for each node, in preorder, 1 for carets
+	 * @param T the tree
+	 * @param out where to write
+	 */
+	private static void writeShape(SuccinctNvTree T, BitWriter out)
+	{
+		long[] bits = T.shapeWords();
+		for (int p=0;p<T.size();p++)
+		{
+			out.write(bits[p>>>6]>>>(p&63), 1);
+		}
+	}
+
+	/**
+	 * Writes the colors of the carets of a tree, a byte each, in preorder
+	 * @param T the tree
+	 * @param out where to write
+	 */
+	private static void writeColors(SuccinctNvTree T, BitWriter out)
+	{
+		for (byte col : T.caretColors())
+		{
+			out.write(col, 8);
+		}
+	}
+
+	/**
+	 * Reads the shape of a tree written by writeShape
+	 * @param size the number of nodes
+	 * @param in where to read
+	 * @return the preorder shape bits
+	 */
+	private static long[] readShape(int size, BitReader in)
+	{
+		long[] bits = new long[(size+63)/64];
+		for (int p=0;p<size;p++)
+		{
+			bits[p>>>6] |= in.read(1) << (p&63);
+		}
+		return bits;
+	}
+
+	/**
+	 * Reads the colors of the carets of a tree written by writeColors
+	 * @param numCarets the number of carets
+	 * @param maxcol the largest color of the pair; if it is 1, no colors were written
+	 * @param in where to read
+	 * @return the colors of the carets, in preorder
+	 */
+	private static byte[] readColors(int numCarets, int maxcol, BitReader in)
+	{
+		byte[] colors = new byte[numCarets];
+		for (int k=0;k<numCarets;k++)
+		{
+			colors[k] = (byte) ((maxcol>1) ? in.read(8) : 1);
+		}
+		return colors;
+	}
+
+	/**
+	 * Writes numbers into a byte array, bit by bit
+	 */
+	private static final class BitWriter
+	{
+		final byte[] bytes;
+		private long pos = 0;
+
+		BitWriter(int size)
+		{
+			bytes = new byte[size];
+		}
+
+		/**
+		 * Writes the w lowest bits of x, the highest one first
+		 */
+		void write(long x, int w)
+		{
+			for (int k=w-1;k>=0;k--)
+			{
+				if (((x>>>k)&1L) != 0)
+				{
+					bytes[(int)(pos>>>3)] |= (byte)(0x80>>>(pos&7));
+				}
+				pos++;
+			}
+		}
+	}
+
+	/**
+	 * Reads the numbers written by a BitWriter
+	 */
+	private static final class BitReader
+	{
+		private final byte[] bytes;
+		private long pos = 0;
+
+		BitReader(byte[] bytes)
+		{
+			this.bytes = bytes;
+		}
+
+		/**
+		 * Reads a number of w bits
+		 */
+		long read(int w)
+		{
+			long x = 0;
+			for (int k=0;k<w;k++)
+			{
+				x = (x<<1) | ((bytes[(int)(pos>>>3)]>>>(7-(pos&7)))&1);
+				pos++;
+			}
+			return x;
+		}
+	}
+}
@@ -0,0 +1,828 @@
+package nvTrees;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * A read-only nV tree stored in a few flat arrays instead of TreeNode objects.
+ * <p>
+ * The shape of the tree is stored as a bit vector in preorder (the order
+ * in which the nodes appear in the tree string): bit p is 1 if the p-th node
+ * is a caret and 0 if it is a leaf. Since every node has 0 or 2 children,
+ * this determines the tree. The colors of the carets are kept in a byte array,
+ * in the same order as the carets appear in the bit vector.
+ * <p>
+ * Nodes are identified by their preorder index. The left child of the caret p is p+1,
+ * and its right child comes right after the end of the left subtree. Subtree ends are found
+ * with the excess E(p) = (number of carets) - (number of leaves) among nodes 0..p: the subtree
+ * of node p ends at the first q &gt;= p with E(q) = E(p-1) - 1. To find it fast, the bit vector
+ * has rank counts for each block of RANKWORDS words, and the minimum excess for each
+ * word and each block of MINWORDS words.
+ * <p>
+ * This takes about 1.2 bits per node plus a byte per caret, as opposed to several
+ * objects per node for NvTree, so large trees (growth balls, high powers) can be kept in memory.
+ * The bit vector and the colors are also the form in which tree pairs are stored
+ * by {@link OffHeapPairStore} and in the sphere files of {@link ExternalGrowth}.
+ * Use {@link #toNvTree()} to get a tree that can be modified.
+ * <p>
+ * The rank and excess indexes are only built when they are first needed, so a tree that is only
+ * stored or converted to an NvTree does not pay for them.
+ */
+public class SuccinctNvTree {
+
+	/**
+	 * Number of words in a rank block
+	 */
+	private static final int RANKWORDS = 8;
+
+	/**
+	 * Number of words in a block of the minimum excess index
+	 */
+	private static final int MINWORDS = 64;
+
+	/**
+	 * Total excess of each byte value (bits are read from the least significant one)
+	 */
+	private static final byte[] BYTE_EXCESS = new byte[256];
+
+	/**
+	 * Minimum prefix excess of each byte value (bits are read from the least significant one)
+	 */
+	private static final byte[] BYTE_MIN = new byte[256];
+
+	static
+	{
+		for (int b=0;b<256;b++)
+		{
+			int e = 0;
+			int min = 8;
+			for (int k=0;k<8;k++)
+			{
+				e += (((b>>k)&1)==1) ? 1 : -1;
+				min = Math.min(min, e);
+			}
+			BYTE_EXCESS[b] = (byte) e;
+			BYTE_MIN[b] = (byte) min;
+		}
+	}
+
+	/**
+	 * Preorder shape bits: bit (p%64) of bits[p/64] is 1 if node p is a caret
+	 */
+	private long[] bits;
+
+	/**
+	 * Number of nodes in the tree
+	 */
+	private int size;
+
+	/**
+	 * Colors of the carets, in preorder: colors[rank1(p)] is the color of caret p
+	 */
+	private byte[] colors;
+
+	/**
+	 * rankBlocks[j] = number of carets before word j*RANKWORDS; null until the indexes are built.
+	 * It is set after the other indexes, so a thread that sees it also sees them.
+	 */
+	private volatile int[] rankBlocks;
+
+	/**
+	 * wordMin[w] = minimum prefix excess inside word w, relative to the excess before the word
+	 */
+	private byte[] wordMin;
+
+	/**
+	 * blockMin[j] = minimum excess E(p) over the nodes p in words j*MINWORDS..(j+1)*MINWORDS-1
+	 */
+	private int[] blockMin;
+
+	/**
+	 * Constructs a succinct tree from a tree string (see {@link NvTree#NvTree(String)}
+	 * for the format; random trees are not supported here)
+	 * @param structure the tree string
+	 * @throws TreeNodeException if the string is not a valid tree
+	 */
+	public SuccinctNvTree(String structure) throws TreeNodeException
+	{
+		bits = new long[structure.length()/64+1];
+		colors = new byte[structure.length()/2+1];
+		int numCarets = 0;
+		int pending = 1;	//number of nodes that still have to be read
+		int pos = 0;
+		while (pending>0)
+		{
+			if (pos>=structure.length())
+			{
+				throw new TreeNodeException("Not enough symbols for a tree structure !");
+			}
+			char c = structure.charAt(pos);
+			int col;
+			if (c=='_')
+			{
+				int next = structure.indexOf('_', pos+1);
+				if (next<0)
+				{
+					throw new TreeNodeException("You have entered an inavalid tree description: " +
+							"\n the color at "+structure.substring(pos)+" is missing its closing _");
+				}
+				try
+				{
+					col = Integer.parseInt(structure.substring(pos+1, next));
+				}
+				catch(NumberFormatException e)
+				{
+					throw new TreeNodeException("You have entered an inavalid tree description: " +
+							"\n the following color is not a number \n"+e.getMessage());
+				}
+				pos = next+1;
+			}
+			else if ((c>='0')&&(c<='9'))
+			{
+				col = c-'0';
+				pos++;
+			}
+			else
+			{
+				throw new TreeNodeException("You have entered an inavalid tree description: " +
+						"\n the following character is not a digit \n"+c);
+			}
+			if ((col<0)||(col>=NvTree.MAXCOL))
+			{
+				throw new TreeNodeException("The Color "+col+" is invalid. Must be 0 to "+(NvTree.MAXCOL-1)+".");
+			}
+			if (col>0)
+			{
+				bits[size>>>6] |= 1L << (size&63);
+				colors[numCarets] = (byte) col;
+				numCarets++;
+				pending++;
+			}
+			else
+			{
+				pending--;
+			}
+			size++;
+		}
+		if (pos<structure.length())
+		{
+			throw new TreeNodeException("Leftover symbols left: "+structure.substring(pos));
+		}
+		bits = Arrays.copyOf(bits, (size+63)/64);
+		colors = Arrays.copyOf(colors, numCarets);
+	}
+
+	/**
+	 * Constructs a succinct copy of an NvTree
+	 * @param tree the tree to copy
+	 */
+	public SuccinctNvTree(NvTree tree)
+	{
+		int numLeaves = tree.getNumLeaves();
+		size = 2*numLeaves-1;
+		bits = new long[(size+63)/64];
+		colors = new byte[numLeaves-1];
+		int p = 0;
+		int numCarets = 0;
+		ArrayList<TreeNode> stack = new ArrayList<TreeNode>();
+		stack.add(tree.rootNode);
+		while (!stack.isEmpty())
+		{
+			TreeNode node = stack.remove(stack.size()-1);
+			if (!node.isLeaf())
+			{
+				bits[p>>>6] |= 1L << (p&63);
+				colors[numCarets] = (byte) node.color;
+				numCarets++;
+				stack.add(node.right);
+				stack.add(node.left);
+			}
+			p++;
+		}
+	}
+
+	/**
+	 * Constructs a succinct tree from its bit vector and the colors of its carets; the arrays are not copied
+	 * @param bits preorder shape bits: bit (p%64) of bits[p/64] is 1 if node p is a caret
+	 * @param size number of nodes
+	 * @param colors colors of the carets, in preorder
+	 */
+	SuccinctNvTree(long[] bits, int size, byte[] colors)
+	{
+		this.bits = bits;
+		this.size = size;
+		this.colors = colors;
+	}
+
+	/**
+	 * Returns the preorder shape bits of this tree (not a copy; do not change it)
+	 */
+	long[] shapeWords()
+	{
+		return bits;
+	}
+
+	/**
+	 * Returns the colors of the carets of this tree, in preorder (not a copy; do not change it)
+	 */
+	byte[] caretColors()
+	{
+		return colors;
+	}
+
+	/**
+	 * Builds the rank and excess indexes if they are not built yet
+	 */
+	private void index()
+	{
+		if (rankBlocks == null)
+		{
+			synchronized (this)
+			{
+				if (rankBlocks == null)
+				{
+					buildIndex();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Builds the rank and excess indexes of the bit vector
+	 */
+	private void buildIndex()
+	{
+		int numWords = bits.length;
+		int[] ranks = new int[numWords/RANKWORDS+1];
+		wordMin = new byte[numWords];
+		blockMin = new int[(numWords+MINWORDS-1)/MINWORDS];
+		Arrays.fill(blockMin, Integer.MAX_VALUE);
+		int rank = 0;
+		int excess = 0;
+		for (int w=0;w<numWords;w++)
+		{
+			if (w%RANKWORDS==0)
+			{
+				ranks[w/RANKWORDS] = rank;
+			}
+			int valid = Math.min(64, size-64*w);
+			long word = bits[w];
+			int e = 0;
+			int min = 64;
+			for (int k=0;k<valid;k++)
+			{
+				e += (((word>>>k)&1L)==1L) ? 1 : -1;
+				min = Math.min(min, e);
+			}
+			wordMin[w] = (byte) min;
+			blockMin[w/MINWORDS] = Math.min(blockMin[w/MINWORDS], excess+min);
+			rank += Long.bitCount(word);
+			excess += e;
+		}
+		if (numWords%RANKWORDS==0)
+		{
+			ranks[numWords/RANKWORDS] = rank;
+		}
+		rankBlocks = ranks;
+	}
+
+	/**
+	 * Returns the number of carets among nodes 0..p-1
+	 * @param p a preorder index, 0..size
+	 * @return number of carets before node p
+	 */
+	public int rank1(int p)
+	{
+		index();
+		int w = p>>>6;
+		int r = rankBlocks[w/RANKWORDS];
+		for (int k=(w/RANKWORDS)*RANKWORDS;k<w;k++)
+		{
+			r += Long.bitCount(bits[k]);
+		}
+		if ((p&63)!=0)
+		{
+			r += Long.bitCount(bits[w] & ((1L << (p&63))-1));
+		}
+		return r;
+	}
+
+	/**
+	 * Returns the number of leaves among nodes 0..p-1
+	 * @param p a preorder index, 0..size
+	 * @return number of leaves before node p
+	 */
+	public int rank0(int p)
+	{
+		return p-rank1(p);
+	}
+
+	/**
+	 * Returns the preorder index of the k-th leaf (leaves are numbered from 0, left to right)
+	 * @param k index of the leaf
+	 * @return the preorder index of the leaf
+	 */
+	public int select0(int k) throws TreeNodeException
+	{
+		if ((k<0)||(k>=getNumLeaves()))
+		{
+			throw new TreeNodeException("No leaf number "+k+" in a tree with "+getNumLeaves()+" leaves");
+		}
+		index();
+		//binary search for the last rank block that starts with at most k leaves
+		int lo = 0;
+		int hi = (bits.length-1)/RANKWORDS;
+		while (lo<hi)
+		{
+			int mid = (lo+hi+1)/2;
+			if (mid*RANKWORDS*64-rankBlocks[mid] <= k) {lo = mid;} else {hi = mid-1;}
+		}
+		int w = lo*RANKWORDS;
+		int zeros = w*64-rankBlocks[lo];
+		while (zeros + 64 - Long.bitCount(bits[w]) <= k)
+		{
+			zeros += 64 - Long.bitCount(bits[w]);
+			w++;
+		}
+		long inv = ~bits[w];
+		for (int j=zeros;j<k;j++)
+		{
+			inv &= inv-1; 	//drop the lowest leaf bit
+		}
+		return w*64+Long.numberOfTrailingZeros(inv);
+	}
+
+	/**
+	 * Returns the excess E(p) = (carets - leaves) among nodes 0..p; E(-1)=0.
+	 */
+	private int excess(int p)
+	{
+		return 2*rank1(p+1)-(p+1);
+	}
+
+	/**
+	 * Returns the first q &gt;= from with E(q) = target, given that E(from-1) &gt; target.
+	 * @param from preorder index to start the search at
+	 * @param target the excess to look for
+	 * @return the first node at which the excess reaches target
+	 */
+	private int findExcess(int from, int target)
+	{
+		index();
+		int e = excess(from-1);
+		int w = from>>>6;
+		//finish the word of from, bit by bit
+		long word = bits[w];
+		int end = Math.min(size, (w+1)*64);
+		for (int p=from;p<end;p++)
+		{
+			e += (((word>>>(p&63))&1L)==1L) ? 1 : -1;
+			if (e==target) {return p;}
+		}
+		w++;
+		//skip whole words, and whole blocks of words when possible
+		while (w<bits.length)
+		{
+			if ((w%MINWORDS==0)&&(blockMin[w/MINWORDS]>target))
+			{
+				int nextBlock = Math.min(bits.length, w+MINWORDS);
+				e = excess(nextBlock*64-1);
+				w = nextBlock;
+				continue;
+			}
+			if (e+wordMin[w]>target)
+			{
+				int valid = Math.min(64, size-64*w);
+				e += 2*Long.bitCount(bits[w])-valid;
+				w++;
+				continue;
+			}
+			//the answer is in this word: find the byte, then the bit
+			word = bits[w];
+			for (int b=0;b<8;b++)
+			{
+				int by = (int)((word>>>(8*b))&0xFF);
+				if (e+BYTE_MIN[by]<=target)
+				{
+					for (int k=0;k<8;k++)
+					{
+						e += (((by>>k)&1)==1) ? 1 : -1;
+						if (e==target) {return w*64+8*b+k;}
+					}
+				}
+				e += BYTE_EXCESS[by];
+			}
+			w++;
+		}
+		return size-1;
+	}
+
+	/**
+	 * Returns the number of nodes in the tree
+	 */
+	public int size()
+	{
+		return size;
+	}
+
+	/**
+	 * Tells whether the node p is a leaf
+	 * @param p preorder index of the node
+	 */
+	public boolean isLeaf(int p)
+	{
+		return ((bits[p>>>6]>>>(p&63))&1L)==0L;
+	}
+
+	/**
+	 * Returns the color of a node
+	 * @param p preorder index of the node
+	 * @return the color of the node, 0 for leaves
+	 */
+	public int getColor(int p)
+	{
+		return isLeaf(p) ? 0 : colors[rank1(p)];
+	}
+
+	/**
+	 * Returns the last node in the subtree of p
+	 * @param p preorder index of the node
+	 * @return the preorder index of the rightmost leaf under p
+	 */
+	public int subtreeEnd(int p)
+	{
+		if (isLeaf(p))
+		{
+			return p;
+		}
+		return findExcess(p, excess(p-1)-1);
+	}
+
+	/**
+	 * Returns the left child of a caret
+	 * @param p preorder index of a caret
+	 * @return preorder index of its left child
+	 */
+	public int leftChild(int p) throws TreeNodeException
+	{
+		if (isLeaf(p))
+		{
+			throw new TreeNodeException("The node "+p+" is a leaf and has no children");
+		}
+		return p+1;
+	}
+
+	/**
+	 * Returns the right child of a caret
+	 * @param p preorder index of a caret
+	 * @return preorder index of its right child
+	 */
+	public int rightChild(int p) throws TreeNodeException
+	{
+		return subtreeEnd(leftChild(p))+1;
+	}
+
+	/**
+	 * Counts the number of leaves in the tree
+	 */
+	public int getNumLeaves()
+	{
+		return rank0(size);
+	}
+
+	/**
+	 * Counts the number of leaves in the subtree at a node
+	 * @param p preorder index of the node
+	 */
+	public int getNumLeavesAt(int p)
+	{
+		return rank0(subtreeEnd(p)+1)-rank0(p);
+	}
+
+	/**
+	 * Returns a node by its path value (a string of 0's and 1's, see {@link TreeNode#path});
+	 * throws an exception if the tree does not contain such node.
+	 * @param path path to the node
+	 * @return the preorder index of the node
+	 */
+	public int nodeByPath(String path) throws TreeNodeException
+	{
+		int p = 0;
+		for (int k=0;k<path.length();k++)
+		{
+			if (isLeaf(p))
+			{
+				throw new TreeNodeException("No leaf with such path !");
+			}
+			p = (path.charAt(k)=='0') ? p+1 : rightChild(p);
+		}
+		return p;
+	}
+
+	/**
+	 * Given a node Super Path, returns the corresponding node
+	 * @param spath the Super Path to the node you want to get
+	 * @return the preorder index of the node with this superpath
+	 */
+	public int nodeBySuperPath(SuperPath spath) throws TreeNodeException
+	{
+		int dim = spath.getDimension();
+		int[] used = new int[dim+1];
+		int remaining = spath.sizeLog();
+		int p = 0;
+		while (remaining>0)
+		{
+			if (isLeaf(p))
+			{
+				throw new TreeNodeException("No node with such path !");
+			}
+			int col = getColor(p);
+			if ((col>dim)||(used[col]>=spath.getColLength(col)))
+			{
+				throw new TreeNodeException("No node with such path !");
+			}
+			int c = spath.symbolAt(col, used[col]);
+			used[col]++;
+			remaining--;
+			p = (c==0) ? p+1 : rightChild(p);
+		}
+		return p;
+	}
+
+	/**
+	 * Returns the depth of the tree
+	 * @return the depth of the tree (1 for a single leaf)
+	 */
+	public int getDepth()
+	{
+		int depth = 0;
+		int max = 0;
+		int[] pending = new int[size/2+2]; //pending[d] = 1 while the right child of the caret at depth d is not visited
+		for (int p=0;p<size;p++)
+		{
+			depth++;
+			max = Math.max(max, depth);
+			if (!isLeaf(p))
+			{
+				pending[depth] = 1;
+			}
+			else
+			{
+				//go up until an ancestor whose right child is next
+				while ((depth>0)&&(pending[depth]!=1))
+				{
+					depth--;
+				}
+				if (depth>0)
+				{
+					pending[depth] = 2;
+				}
+			}
+		}
+		return max;
+	}
+
+	/**
+	 * Gets color depths for each color; see {@link NvTree#getColorDepths()}
+	 * @return the array containing color depths for each color, of length (largest color used)+1
+	 */
+	public int[] getColorDepths()
+	{
+		int maxcol = 0;
+		for (byte c:colors)
+		{
+			maxcol = Math.max(maxcol, c);
+		}
+		int[] depths = new int[maxcol+1];
+		depths[0] = 1;
+		DFSWalker walker = new DFSWalker();
+		while (walker.next())
+		{
+			if (walker.atLeaf())
+			{
+				for (int i=1;i<=maxcol;i++)
+				{
+					depths[i] = Math.max(depths[i], walker.colorCount(i));
+				}
+			}
+		}
+		return depths;
+	}
+
+	/**
+	 * Returns the array list that contains unique node labels
+	 * (see {@link TreeNode#path}) of the LEAVES as they are being
+	 * traversed Depth-First
+	 * @return DFS-ordered list of node path strings
+	 */
+	public ArrayList<String> traverseDFS()
+	{
+		ArrayList<String> ans = new ArrayList<String>();
+		DFSWalker walker = new DFSWalker();
+		while (walker.next())
+		{
+			if (walker.atLeaf())
+			{
+				ans.add(walker.path());
+			}
+		}
+		return ans;
+	}
+
+	/**
+	 * Does a detailed DFS of the tree, returning an list of
+	 * SuperPaths of each leaf
+	 * @return SuperPaths to leaves as they are discovered
+	 */
+	public ArrayList<SuperPath> detailedDFS()
+	{
+		ArrayList<SuperPath> ans = new ArrayList<SuperPath>();
+		DFSWalker walker = new DFSWalker();
+		while (walker.next())
+		{
+			if (walker.atLeaf())
+			{
+				ans.add(new SuperPath(walker.superpath));
+			}
+		}
+		return ans;
+	}
+
+	/**
+	 * Builds an NvTree with the same structure as this tree
+	 * @return a new (modifiable) NvTree
+	 */
+	public NvTree toNvTree() throws TreeNodeException
+	{
+		NvTree T = new NvTree("0");
+		ArrayList<TreeNode> stack = new ArrayList<TreeNode>();	//the leaves that are still to be visited
+		stack.add(T.rootNode);
+		int caret = 0;
+		for (int p=0;p<size;p++)
+		{
+			TreeNode node = stack.remove(stack.size()-1);
+			if (!isLeaf(p))
+			{
+				T.addCaretAt(node, colors[caret]);
+				caret++;
+				stack.add(node.right);
+				stack.add(node.left);
+			}
+		}
+		return T;
+	}
+
+	/**
+	 * Returns the tree string of this tree
+	 */
+	public String toString()
+	{
+		StringBuilder S = new StringBuilder();
+		int caret = 0;
+		for (int p=0;p<size;p++)
+		{
+			if (isLeaf(p))
+			{
+				S.append('0');
+			}
+			else
+			{
+				S.append(NvTree.colorToken(colors[caret]));
+				caret++;
+			}
+		}
+		return S.toString();
+	}
+
+	/**
+	 * Walks the tree in preorder, keeping track of the path to the current node,
+	 * without recursion. Call next() to move to the next node.
+	 */
+	private class DFSWalker
+	{
+		/**
+		 * Preorder index of the current node
+		 */
+		int p = -1;
+
+		/**
+		 * Colors of the carets on the path to the current node, root first
+		 */
+		int[] stackColor = new int[16];
+
+		/**
+		 * For the carets on the path: true if the path goes to the right child
+		 */
+		boolean[] stackRight = new boolean[16];
+
+		/**
+		 * Number of carets on the path to the current node
+		 */
+		int depth = 0;
+
+		/**
+		 * The SuperPath of the current node
+		 */
+		SuperPath superpath = new SuperPath();
+
+		/**
+		 * The number of times each color occurs on the path to the current node
+		 */
+		int[] counts = new int[NvTree.MAXCOL];
+
+		/**
+		 * Moves to the next node in preorder
+		 * @return false if there are no more nodes
+		 */
+		boolean next()
+		{
+			try
+			{
+				if (p>=0)
+				{
+					if (!isLeaf(p))	//go to the left child
+					{
+						push(colors[rank1(p)]);
+					}
+					else 	//go up to the first caret whose left subtree is done, and move right
+					{
+						while ((depth>0)&&stackRight[depth-1])
+						{
+							pop();
+						}
+						if (depth==0)
+						{
+							p = size;
+							return false;
+						}
+						int col = stackColor[depth-1];
+						superpath.goUp(col);
+						superpath.appendDown(col, false);
+						stackRight[depth-1] = true;
+					}
+				}
+				p++;
+				return p<size;
+			}
+			catch (TreeNodeException e)
+			{
+				throw new IllegalStateException(e.getError());
+			}
+		}
+
+		/**
+		 * Goes down to the left child of a caret of color col
+		 */
+		private void push(int col) throws TreeNodeException
+		{
+			if (depth==stackColor.length)
+			{
+				stackColor = Arrays.copyOf(stackColor, 2*depth);
+				stackRight = Arrays.copyOf(stackRight, 2*depth);
+			}
+			stackColor[depth] = col;
+			stackRight[depth] = false;
+			depth++;
+			counts[col]++;
+			superpath.appendDown(col, true);
+		}
+
+		/**
+		 * Goes up from a child to its parent
+		 */
+		private void pop() throws TreeNodeException
+		{
+			depth--;
+			counts[stackColor[depth]]--;
+			superpath.goUp(stackColor[depth]);
+		}
+
+		/**
+		 * Tells whether the current node is a leaf
+		 */
+		boolean atLeaf()
+		{
+			return isLeaf(p);
+		}
+
+		/**
+		 * Returns the number of times color i occurs on the path to the current node
+		 */
+		int colorCount(int i)
+		{
+			return counts[i];
+		}
+
+		/**
+		 * Returns the path of 0's and 1's to the current node
+		 */
+		String path()
+		{
+			char[] C = new char[depth];
+			for (int k=0;k<depth;k++)
+			{
+				C[k] = stackRight[k] ? '1' : '0';
+			}
+			return new String(C);
+		}
+	}
+}
@@ -1,4 +1,6 @@
 package nvTrees;
+import java.util.Arrays;
+
 /**
  * This class holds a path to a leaf in a colored tree.
  * In a binary tree a path from the root to a leaf can 
@@ -23,25 +25,65 @@ package nvTrees;
  */
 public class SuperPath  {
 
+	/**
+	 * Number of path symbols that fit in one packed word
+	 */
+	static final int WORD = 64;
+	
+	/**
+	 * Shared storage for paths that have no colors yet
+	 */
+	private static final long[] NO_WORDS = new long[0];
+	
+	/**
+	 * Shared storage for paths that have no colors yet
+	 */
+	private static final int[] NO_LENGTHS = new int[0];
+	
+	/**
+	 * Packed color paths: symbol k of the path in color i is stored in
+	 * bit (63-k) of words[i-1], so that comparing words as unsigned numbers
+	 * compares paths lexicographically. Bits past the path length are always zero.
+	 * <br>
+	 * Symbols past the first WORD ones are stored in spill; see word(i,k).
+	 * <br>
+	 * The arrays only have as many slots as the largest color this path has been 
+	 * extended in, so a path in a 1-dimensional tree stores a single color.
+	 * Colors past the end of the arrays have empty paths.
+	 */
+	private long[] words = NO_WORDS;
 	
-	private String[] colorpaths = new String[NvTree.MAXCOL];
+	/**
+	 * Length of the color path in each color; lengths[i-1] is the length in color i
+	 */
+	private int[] lengths = NO_LENGTHS;
+	
+	/**
+	 * Extra words of color paths that are longer than WORD symbols:
+	 * spill[i-1][k-1] holds symbols k*WORD..(k+1)*WORD-1 of the path in color i,
+	 * packed the same way as words[i-1].
+	 * <br>
+	 * This is null unless some color path is longer than WORD symbols, and spill[i-1] is null
+	 * whenever the path in color i is at most WORD symbols long. Words past the path length are zero.
+	 */
+	private long[][] spill = null;
 	
 	/**
 	 * Constructs a new instance of a super path 
 	 * by copying the contents of the array
-	 * @param colorpaths array of color paths
+	 * @param colorpaths array of color paths (strings of 0's and 1's; null means an empty path)
 	 */
 	public SuperPath(String[] colorpaths)
 	{
-		for (int i=0;i<colorpaths.length;i++)
+		for (int i=1;i<colorpaths.length;i++)
 		{
-			if (colorpaths[i]!=null)
-			{
-				this.colorpaths[i] = colorpaths[i];
-			}
-			else
+			String S = colorpaths[i];
+			if (S!=null)
 			{
-				this.colorpaths[i] = "";
+				for (int k=0;k<S.length();k++)
+				{
+					append(i, S.charAt(k)!='0');
+				}
 			}
 		}
 	}
@@ -54,11 +96,6 @@ public class SuperPath  {
 	 */
 	public SuperPath()
 	{
-		this.colorpaths = new String[NvTree.MAXCOL];
-		for (int i=0;i<colorpaths.length;i++)
-		{
-			colorpaths[i]="";
-		}
 	}
 	
 
@@ -67,7 +104,19 @@ public class SuperPath  {
 	 */
 	public SuperPath(SuperPath P)
 	{
-		this(P.colorpaths);
+		this.words = (P.words.length==0) ? NO_WORDS : P.words.clone();
+		this.lengths = (P.lengths.length==0) ? NO_LENGTHS : P.lengths.clone();
+		if (P.spill!=null)
+		{
+			this.spill = new long[P.spill.length][];
+			for (int i=0;i<spill.length;i++)
+			{
+				if (P.spill[i]!=null)
+				{
+					spill[i] = Arrays.copyOf(P.spill[i], numWords(lengths[i])-1);
+				}
+			}
+		}
 	}
 	
 	/**
@@ -76,9 +125,9 @@ public class SuperPath  {
 	 */
 	public boolean isEmpty()
 	{
-		for (String S:colorpaths)
+		for (int len:lengths)
 		{
-			if ((S!=null)&&(S.length()>0))
+			if (len>0)
 			{
 				return false;
 			}
@@ -86,6 +135,83 @@ public class SuperPath  {
 		return true;
 	}
 	
+	/**
+	 * Returns the number of words needed to store a path 
+	 * @param len path length
+	 * @return number of words that hold len symbols (at least 1)
+	 */
+	private static int numWords(int len)
+	{
+		return (len<=WORD) ? 1 : (len+WORD-1)/WORD;
+	}
+	
+	/**
+	 * Returns the number of colors this path has storage for; 
+	 * paths in all higher colors are empty.
+	 */
+	private int numColors()
+	{
+		return lengths.length;
+	}
+	
+	/**
+	 * Returns the length of the path in color i, for i>0
+	 */
+	private int length(int i)
+	{
+		return (i<=lengths.length) ? lengths[i-1] : 0;
+	}
+	
+	/**
+	 * Returns the k-th word of the packed path in color i
+	 * (0 if the path is shorter than k*WORD symbols)
+	 */
+	private long word(int i, int k)
+	{
+		if (i>lengths.length)
+		{
+			return 0L;
+		}
+		if (k==0)
+		{
+			return words[i-1];
+		}
+		if ((spill==null)||(spill[i-1]==null)||(k>spill[i-1].length))
+		{
+			return 0L;
+		}
+		return spill[i-1][k-1];
+	}
+	
+	/**
+	 * Makes sure this path has storage for color i
+	 * @param i a color
+	 */
+	private void ensureColor(int i)
+	{
+		if (i>lengths.length)
+		{
+			words = Arrays.copyOf(words, i);
+			lengths = Arrays.copyOf(lengths, i);
+			if (spill!=null)
+			{
+				spill = Arrays.copyOf(spill, i);
+			}
+		}
+	}
+	
+	/**
+	 * Returns the dimension of the block represented by this path, i.e. 
+	 * the largest color in which the path is not empty
+	 * @return the largest color with a non-empty color path, or 0 if this path is empty
+	 */
+	public int getDimension()
+	{
+		int i = lengths.length;
+		while ((i>0)&&(lengths[i-1]==0)) {i--;}
+		return i;
+	}
+	
 	/**
 	 * Tells whether this path is the same as some other path
 	 * @param o the other path (must be of type SuperPath)
@@ -93,16 +219,22 @@ public class SuperPath  {
 	 */
 	public boolean equals(Object o)
 	{
-		
-		for (int i=1;i<NvTree.MAXCOL;i++)
+		SuperPath p = (SuperPath) o;
+		int n = Math.max(this.numColors(), p.numColors());
+		for (int i=1;i<=n;i++)
 		{
-			SuperPath p = (SuperPath) o;
-			String S = this.colorpaths[i]; if (S==null) {S="";}
-			String T = p.colorpaths[i]; if (T==null) {T="";}
-			if (!S.equals(T))
+			int len = this.length(i);
+			if (len!=p.length(i))
 			{
 				return false;
 			}
+			for (int k=0;k<numWords(len);k++)
+			{
+				if (this.word(i, k)!=p.word(i, k))
+				{
+					return false;
+				}
+			}
 		}
 		return true;
 	}
@@ -113,7 +245,22 @@ public class SuperPath  {
 	 */
 	public int hashCode()
 	{
-		return this.toString().hashCode();
+		int h = 1;
+		for (int i=1;i<=numColors();i++)
+		{
+			int len = length(i);
+			if (len>0)
+			{
+				h = 31*h + i;
+				h = 31*h + len;
+				for (int k=0;k<numWords(len);k++)
+				{
+					long w = word(i, k);
+					h = 31*h + (int)(w ^ (w >>> 32));
+				}
+			}
+		}
+		return h;
 	}
 	
 	/**
@@ -122,17 +269,72 @@ public class SuperPath  {
 	public String toString()
 	{
 		String ans ="[ ";
-		for (int i=1; i<colorpaths.length;i++)
+		for (int i=1; i<=numColors();i++)
 		{
-			if ((colorpaths[i]!=null)&&(colorpaths[i].length()>0))
+			if (length(i)>0)
 				{
-					ans += i +":"+colorpaths[i] +"; ";
+					ans += i +":"+getColPath(i) +"; ";
 				}
 		}
 		ans+="]";
 		return ans;
 	}
 	
+	/**
+	 * Returns a word with the top len bits set
+	 * @param len number of bits to set (0..WORD)
+	 * @return the mask for the first len symbols of a packed word
+	 */
+	private static long prefixMask(int len)
+	{
+		return (len==0) ? 0L : (-1L << (WORD-len));
+	}
+	
+	/**
+	 * Tells whether the color path of P1 in color i is a prefix of that of P2
+	 * or vice versa. 
+	 */
+	private static boolean arePrefixComparable(SuperPath P1, SuperPath P2, int i)
+	{
+		int len = Math.min(P1.length(i), P2.length(i));
+		int full = len / WORD;
+		for (int k=0;k<full;k++)
+		{
+			if (P1.word(i, k)!=P2.word(i, k))
+			{
+				return false;
+			}
+		}
+		int rest = len % WORD;
+		return (rest==0) || (((P1.word(i, full) ^ P2.word(i, full)) & prefixMask(rest)) == 0);
+	}
+	
+	/**
+	 * Compares the color paths of two SuperPaths in color i lexicographically
+	 * (a proper prefix of a path comes before the path), without 
+	 * creating strings.
+	 * @param P1 a SuperPath
+	 * @param P2 another SuperPath
+	 * @param i the color to compare in
+	 * @return a negative number, 0 or a positive number as the path of P1 in color i 
+	 * is less than, equal to or greater than the path of P2 
+	 */
+	static int compareColPaths(SuperPath P1, SuperPath P2, int i)
+	{
+		int len1 = P1.length(i);
+		int len2 = P2.length(i);
+		int n = Math.max(numWords(len1), numWords(len2));
+		for (int k=0;k<n;k++)
+		{
+			int ans = Long.compareUnsigned(P1.word(i, k), P2.word(i, k));
+			if (ans!=0)
+			{
+				return ans;
+			}
+		}
+		return len1-len2;
+	}
+	
 	/**
 	 * Tells whether the block of the pattern represented by P1
 	 * intersects the block represented by a path P2.
@@ -141,10 +343,9 @@ public class SuperPath  {
 	 * @return
 	 */
 	static boolean areIntersecting(SuperPath P1, SuperPath P2){
-		for (int i=1; i<NvTree.MAXCOL; i++){
-			String S1 = P1.colorpaths[i]; 
-			String S2 = P2.colorpaths[i];
-			if (!(S1.startsWith(S2) || S2.startsWith(S1)))
+		int n = Math.min(P1.numColors(), P2.numColors());
+		for (int i=1; i<=n; i++){
+			if (!arePrefixComparable(P1, P2, i))
 			{
 				return false;
 			}
@@ -161,15 +362,50 @@ public class SuperPath  {
 	 */
 	public int sizeLog()
 	{
-		String len="";
-		for (int i=1;i<NvTree.MAXCOL;i++)
+		int len = 0;
+		for (int l:lengths)
 		{
-			len+=this.getColPath(i);
+			len+=l;
 		}
-		return len.length();
+		return len;
 	}
 
 	
+	/**
+	 * Appends a symbol to the color path in color i. The color is not checked.
+	 * @param i the color
+	 * @param one true to append 1, false to append 0
+	 */
+	private void append(int i, boolean one)
+	{
+		ensureColor(i);
+		int len = lengths[i-1];
+		int k = len / WORD;
+		if (k>0)
+		{
+			if (spill==null) {spill = new long[lengths.length][];}
+			long[] W = spill[i-1];
+			if (W==null)
+			{
+				W = new long[2];
+				spill[i-1] = W;
+			}
+			else if (k>W.length)
+			{
+				W = Arrays.copyOf(W, 2*W.length);
+				spill[i-1] = W;
+			}
+			if (one)
+			{
+				W[k-1] |= (1L << (WORD-1-len%WORD));
+			}
+		}
+		else if (one)
+		{
+			words[i-1] |= (1L << (WORD-1-len));
+		}
+		lengths[i-1] = len+1;
+	}
 
 	/**
 	 * Appends 0 or 1 to  the color path of the corresponding color
@@ -193,16 +429,7 @@ public class SuperPath  {
 		}
 		else
 		{
-			String S = this.colorpaths[i];
-			if (goLeft)
-			{
-				S+='0';
-			}
-			else
-			{
-				S+='1';
-			}
-			this.colorpaths[i]=S;
+			append(i, !goLeft);
 		}		
 	}
 	
@@ -223,15 +450,27 @@ public class SuperPath  {
 	 */
 	public void goUp(int i) throws TreeNodeException
 	{
-		if ((i<1)||(i>=NvTree.MAXCOL)||(colorpaths[i]==null)||(colorpaths[i].length()==0))
+		if ((i<1)||(i>=NvTree.MAXCOL)||(length(i)==0))
 		{
 			throw new TreeNodeException("Cannot go up in color "+i+ "! The color path is that color is empty.");
 		}
 		else
 		{
-			String S = colorpaths[i];
-			S = S.substring(0, S.length()-1);
-			this.colorpaths[i]=S;
+			int len = lengths[i-1]-1;
+			int k = len / WORD;
+			if (k>0)
+			{
+				spill[i-1][k-1] &= prefixMask(len%WORD);
+				if (len==WORD)
+				{
+					spill[i-1] = null;
+				}
+			}
+			else
+			{
+				words[i-1] &= prefixMask(len);
+			}
+			lengths[i-1] = len;
 		}
 	}
 	
@@ -254,18 +493,47 @@ public class SuperPath  {
 	 */
 	public void eatDown(int i) throws TreeNodeException
 	{
-		if ((i<1)||(i>=NvTree.MAXCOL)||(colorpaths[i]==null)||(colorpaths[i].length()==0))
+		if ((i<1)||(i>=NvTree.MAXCOL)||(length(i)==0))
 		{
 			throw new TreeNodeException("Cannot go up in color "+i+ "! The color path is that color is empty.");
 		}
 		else
 		{
-			String S = colorpaths[i];
-			S = S.substring(1);
-			this.colorpaths[i]=S;
+			int len = lengths[i-1]-1;
+			int n = numWords(lengths[i-1]);
+			//shift the whole path one symbol to the left, word at a time
+			words[i-1] = (words[i-1] << 1) | (word(i, 1) >>> (WORD-1));
+			for (int k=1;k<n;k++)
+			{
+				spill[i-1][k-1] = (spill[i-1][k-1] << 1) | (word(i, k+1) >>> (WORD-1));
+			}
+			if (len<=WORD && spill!=null)
+			{
+				spill[i-1] = null;
+			}
+			lengths[i-1] = len;
 		}
 	}
 	
+	/**
+	 * Returns the SuperPath of the sibling block along color i: the block that differs
+	 * from this one only in the last symbol of the color path of color i.
+	 * Together, the two blocks form a caret of color i.
+	 * @param i the color
+	 * @return the SuperPath of the sibling, or null if the color path of color i is empty
+	 */
+	public SuperPath getSibling(int i) throws TreeNodeException
+	{
+		if ((i<1)||(length(i)==0))
+		{
+			return null;
+		}
+		SuperPath S = new SuperPath(this);
+		int last = symbolAt(i, length(i)-1);
+		S.goUp(i);
+		S.appendDown(i, last==1);
+		return S;
+	}
 	
 	
 	/**
@@ -279,10 +547,38 @@ public class SuperPath  {
 		{
 			return "";
 		}
-		else
+		int len = length(i);
+		char[] C = new char[len];
+		for (int k=0;k<len;k++)
 		{
-			return colorpaths[i];
+			C[k] = (char)('0'+symbolAt(i, k));
 		}
+		return new String(C);
+	}
+	
+	/**
+	 * Returns the length of the color path of the corresponding color
+	 * @param i the color whose path you want to get
+	 * @return the length of the path at color i
+	 */
+	public int getColLength(int i)
+	{
+		if (i<1)
+		{
+			return 0;
+		}
+		return length(i);
+	}
+	
+	/**
+	 * Returns a symbol of a color path
+	 * @param i the color 
+	 * @param k the index of the symbol in the color path of color i
+	 * @return 0 or 1, the k-th symbol of the path in color i
+	 */
+	public int symbolAt(int i, int k)
+	{
+		return (int)((word(i, k/WORD) >>> (WORD-1-k%WORD)) & 1L);
 	}
 	
 	
@@ -338,28 +634,25 @@ public class SuperPath  {
 	public int isAdjacentTo(SuperPath P)
 	{
 		int ans = -1;
-		for (int i=0;i<NvTree.MAXCOL;i++)
+		int dim = Math.max(this.numColors(), P.numColors());
+		for (int i=1;i<=dim;i++)
 		{			
-			String S1 = this.getColPath(i);
-			String S2 = P.getColPath(i);
-			if (!S1.equals(S2))
+			int len = this.length(i);
+			if (len!=P.length(i))		//if P differs too much in any colorpath, return false
 			{
-				if ((ans>-1)|| (S1.length() != S2.length()))  //if P differes in more than one colorpath,									
-				{										   //or differs too much in any, return false
-					return -1;
-				}
-				else
+				return -1;
+			}
+			int n = numWords(len);
+			for (int k=0;k<n;k++)
+			{
+				long diff = this.word(i, k) ^ P.word(i, k);
+				if (diff!=0)
 				{
-					S1 = S1.substring(0, S1.length()-1);
-					S2 = S2.substring(0, S2.length()-1);
-					if (S2.equals(S1))
-					{
-						ans = i;			//ans is set only if the first unequal strings are of same length
-					}						//and differ in the last character
-					else
-					{
-						return -1;
+					if ((ans>-1) || (k<n-1) || (diff != (1L << (WORD-1-(len-1)%WORD))))	
+					{									//if P differes in more than one colorpath,
+						return -1;						//or anywhere but in the last symbol, return false
 					}
+					ans = i;
 				}
 			}
 		}
@@ -367,12 +660,3 @@ public class SuperPath  {
 	}
 	
 }
-
-
-
-
-
-
-
-
-
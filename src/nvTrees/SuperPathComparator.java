@@ -41,23 +41,19 @@ public class SuperPathComparator implements Comparator<SuperPath> {
 	 */			
 	public int compare(SuperPath P1, SuperPath P2) 
 	{
-		for (int i=1;i<NvTree.MAXCOL;i++)  
+		int dim = Math.max(P1.getDimension(), P2.getDimension());
+		for (int i=1;i<=dim;i++)  
 		{		
 			if (i!=sigColor)
 			{
-				String S1 = P1.getColPath(i);
-				String S2 = P2.getColPath(i);
-				int ans = S1.compareTo(S2);
+				int ans = SuperPath.compareColPaths(P1, P2, i);
 				if (ans!=0)
 				{
 					return ans;
 				}
 			}
 		}		
-		String S1 = P1.getColPath(sigColor);
-		String S2 = P2.getColPath(sigColor);		
-		int ans = S1.compareTo(S2);
-		return ans;
+		return SuperPath.compareColPaths(P1, P2, sigColor);
 	}
 
 }
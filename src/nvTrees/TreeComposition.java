@@ -0,0 +1,287 @@
+package nvTrees;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+
+/**
+ * Composes two tree pairs by walking the range tree of the first one and the domain tree
+ * of the second one together (see {@link TreePair#compose(TreePair, TreePair)}).
+ * <p>
+ * To compose A and B, the right tree of A and the left tree of B have to be refined to
+ * their common refinement. Its blocks are the nonempty intersections of a leaf x of A's right tree
+ * with a leaf y of B's left tree. The blocks inside a leaf x are found by going down B's left tree,
+ * only into the subtrees that meet x, and every node of B's left tree where both subtrees meet x
+ * is a caret that has to be added under x. Adding the same carets under the leaf of A's left tree
+ * that goes to x gives the left tree of the product; going down A's right tree inside each leaf y
+ * the same way, and adding the carets under the leaf of B's right tree that y goes to,
+ * gives the right tree of the product. The permutation of the product is then found by counting,
+ * without comparing any SuperPaths.
+ * <br>
+ * In one color, this gives the same trees as refining the patterns would. In several colors,
+ * the trees are rebuilt from their patterns with {@link NvTree#fromPattern(java.util.Collection)}.
+ * <p>
+ * Whether a subtree meets a leaf is checked one symbol at a time, while going down both trees:
+ * two nodes meet if in each color, the path of one of them is a prefix of the path of the other one.
+ */
+final class TreeComposition {
+
+	/**
+	 * The tree that is walked through
+	 */
+	private final NvTree outer;
+
+	/**
+	 * The tree that is walked through inside each leaf of the outer tree
+	 */
+	private final NvTree inner;
+
+	/**
+	 * The index of each leaf of the inner tree, in depth-first order
+	 */
+	private final IdentityHashMap<TreeNode, Integer> innerIndex = new IdentityHashMap<TreeNode, Integer>();
+
+	/**
+	 * The leaves of the tree that is refined, in depth-first order
+	 */
+	private final ArrayList<TreeNode> targets = new ArrayList<TreeNode>();
+
+	/**
+	 * The tree that is refined
+	 */
+	private final NvTree target;
+
+	/**
+	 * target.get(leafOf[j]) is refined like the j'th leaf of the outer tree
+	 */
+	private final int[] leafOf;
+
+	/**
+	 * The blocks of the common refinement: the indices of the leaves of the inner tree that meet
+	 * the leaves of the outer tree, leaf by leaf, in depth-first order
+	 */
+	private int[] blocks = new int[16];
+
+	/**
+	 * The number of blocks found so far
+	 */
+	private int numBlocks = 0;
+
+	/**
+	 * count[j] is the number of blocks in the j'th leaf of the outer tree
+	 */
+	private final int[] count;
+
+	/**
+	 * Prepares a walk
+	 * @param outer the tree that is walked through
+	 * @param inner the tree that is walked through inside each leaf of the outer tree
+	 * @param target the tree that is refined; it is changed by the walk
+	 * @param leafOf leafOf[j] is the index of the leaf of target that is refined like the j'th leaf of the outer tree
+	 */
+	private TreeComposition(NvTree outer, NvTree inner, NvTree target, int[] leafOf)
+	{
+		this.outer = outer;
+		this.inner = inner;
+		this.target = target;
+		this.leafOf = leafOf;
+		this.count = new int[leafOf.length];
+		ArrayList<TreeNode> leaves = new ArrayList<TreeNode>();
+		TreePair.leavesAt(inner.rootNode, leaves);
+		for (int i=0;i<leaves.size();i++)
+		{
+			innerIndex.put(leaves.get(i), i);
+		}
+		TreePair.leavesAt(target.rootNode, targets);
+	}
+
+	/**
+	 * Returns the composition B o A of two tree pairs. The result is not reduced.
+	 * @param A a tree pair
+	 * @param B another tree pair
+	 * @return a tree pair C such that C(x) = B(A(x)), whose left tree is a refinement of A's left tree
+	 * and whose right tree is a refinement of B's right tree
+	 */
+	static TreePair compose(TreePair A, TreePair B) throws TreeNodeException
+	{
+		int[] a = A.getPermutation().toArray();	//right leaf j of A <- left leaf a[j]-1 of A
+		int[] b = B.getPermutation().toArray();	//right leaf k of B <- left leaf b[k]-1 of B
+		int[] image = new int[b.length];		//left leaf m of B -> right leaf image[m] of B
+		for (int k=0;k<b.length;k++)
+		{
+			image[b[k]-1] = k;
+		}
+		int[] preimage = new int[a.length];
+		for (int j=0;j<a.length;j++)
+		{
+			preimage[j] = a[j]-1;
+		}
+
+		TreeComposition left = new TreeComposition(A.right_tree, B.left_tree, A.left_tree.duplicate(), preimage);
+		left.walk();
+		TreeComposition right = new TreeComposition(B.left_tree, A.right_tree, B.right_tree.duplicate(), image);
+		right.walk();
+
+		//the blocks inside the leaves of the new trees are in depth-first order,
+		//so the leaves of the new trees are numbered by counting the blocks
+		int[] leftStart = left.startsOfTargets();
+		int[] rightStart = right.startsOfTargets();
+		int[] rank = new int[a.length];	//blocks inside the leaf j of A's right tree already numbered
+		int[] ans = new int[right.numBlocks];
+		int pos = 0;
+		for (int m=0;m<b.length;m++)
+		{
+			int first = rightStart[image[m]];
+			for (int t=0;t<right.count[m];t++)
+			{
+				int j = right.blocks[pos];
+				pos++;
+				ans[first+t] = leftStart[preimage[j]] + rank[j] + 1;
+				rank[j]++;
+			}
+		}
+		NvTree Ltree = left.target;
+		NvTree Rtree = right.target;
+		if (Math.max(Ltree.maxColorValue(), Rtree.maxColorValue())<=1)
+		{
+			return new TreePair(new TreePermutation(Ltree, Rtree, ans));
+		}
+		//in several colors, a pattern is the pattern of many trees. The trees are rebuilt
+		//from their patterns, so that equal patterns give equal trees, and removing the exposed carets
+		//of a pair that represents the identity leaves one block (see TreePair.order())
+		ArrayList<SuperPath> Lblocks = Ltree.detailedDFS();
+		ArrayList<SuperPath> Rblocks = Rtree.detailedDFS();
+		HashMap<SuperPath, SuperPath> map = new HashMap<SuperPath, SuperPath>();
+		for (int i=0;i<ans.length;i++)
+		{
+			map.put(Lblocks.get(ans[i]-1), Rblocks.get(i));
+		}
+		return new TreePair(new TreePermutation(NvTree.fromPattern(Lblocks), NvTree.fromPattern(Rblocks), map));
+	}
+
+	/**
+	 * Walks the outer tree and refines the target tree
+	 */
+	private void walk() throws TreeNodeException
+	{
+		walkAt(outer.rootNode, inner.rootNode, new SuperPath(), new SuperPath(), new int[]{0});
+	}
+
+	/**
+	 * Walks a subtree of the outer tree
+	 * @param x the root of the subtree of the outer tree
+	 * @param y the deepest node of the inner tree that contains x
+	 * @param px the SuperPath of x
+	 * @param py the SuperPath of y
+	 * @param leaf holds the index of the next leaf of the outer tree
+	 */
+	private void walkAt(TreeNode x, TreeNode y, SuperPath px, SuperPath py, int[] leaf) throws TreeNodeException
+	{
+		if (x.isLeaf())
+		{
+			int j = leaf[0];
+			int before = numBlocks;
+			refineAt(targets.get(leafOf[j]), y, px, py);
+			count[j] = numBlocks-before;
+			leaf[0]++;
+			return;
+		}
+		for (int s=0;s<2;s++)
+		{
+			TreeNode child = (s==0) ? x.left : x.right;
+			px.appendDown(x.color, s==0);
+			TreeNode z = y;
+			while (!z.isLeaf())
+			{
+				boolean meetsLeft = meets(z, 0, py, px);
+				boolean meetsRight = meets(z, 1, py, px);
+				if (meetsLeft&&meetsRight)
+				{
+					break;
+				}
+				py.appendDown(z.color, meetsLeft);
+				z = meetsLeft ? z.left : z.right;
+			}
+			walkAt(child, z, px, py, leaf);
+			for (;z!=y;z=z.parent)
+			{
+				py.goUp(z.parent.color);
+			}
+			px.goUp(x.color);
+		}
+	}
+
+	/**
+	 * Adds the carets of a subtree of the inner tree that meet a leaf of the outer tree
+	 * to a leaf of the target tree, and lists the leaves of the subtree that meet the leaf
+	 * @param t the node of the target tree that corresponds to the intersection of the subtree with the leaf
+	 * @param y the root of the subtree of the inner tree
+	 * @param px the SuperPath of the leaf of the outer tree
+	 * @param py the SuperPath of y
+	 */
+	private void refineAt(TreeNode t, TreeNode y, SuperPath px, SuperPath py) throws TreeNodeException
+	{
+		if (y.isLeaf())
+		{
+			if (numBlocks==blocks.length)
+			{
+				int[] more = new int[2*blocks.length];
+				System.arraycopy(blocks, 0, more, 0, numBlocks);
+				blocks = more;
+			}
+			blocks[numBlocks] = innerIndex.get(y);
+			numBlocks++;
+			return;
+		}
+		boolean meetsLeft = meets(y, 0, py, px);
+		boolean meetsRight = meets(y, 1, py, px);
+		if (meetsLeft&&meetsRight)
+		{
+			target.addCaretAt(t, y.color);
+		}
+		if (meetsLeft)
+		{
+			py.appendDown(y.color, true);
+			refineAt(meetsRight ? t.left : t, y.left, px, py);
+			py.goUp(y.color);
+		}
+		if (meetsRight)
+		{
+			py.appendDown(y.color, false);
+			refineAt(meetsLeft ? t.right : t, y.right, px, py);
+			py.goUp(y.color);
+		}
+	}
+
+	/**
+	 * Tells whether a child of a node meets a node of the other tree that meets the node
+	 * @param y a node that is not a leaf
+	 * @param s the child: 0 for left, 1 for right
+	 * @param py the SuperPath of y
+	 * @param px the SuperPath of the node of the other tree
+	 * @return true if the child meets the node of the other tree
+	 */
+	private static boolean meets(TreeNode y, int s, SuperPath py, SuperPath px)
+	{
+		int len = py.getColLength(y.color);
+		return (px.getColLength(y.color)<=len)||(px.symbolAt(y.color, len)==s);
+	}
+
+	/**
+	 * Finds where the refined leaves of the target tree start in the new tree
+	 * @return the index of the first leaf of the new tree inside each leaf of the target tree
+	 */
+	private int[] startsOfTargets()
+	{
+		int[] size = new int[targets.size()];
+		for (int j=0;j<count.length;j++)
+		{
+			size[leafOf[j]] = count[j];
+		}
+		int[] start = new int[size.length];
+		for (int i=1;i<size.length;i++)
+		{
+			start[i] = start[i-1] + size[i-1];
+		}
+		return start;
+	}
+}
@@ -183,12 +183,12 @@ public class TreeDrawer implements Drawable{
 			String label;
 			if (root.isLeaf()&&(leaf_labels!=null)&&(count<leaf_labels.length))
 			{
-				label = ""+leaf_labels[count];//+"="+root.path;
+				label = ""+leaf_labels[count];//+"="+root.getPath();
 				count++;
 			}
 			else
 			{
-				label = labels[root.color];
+				label = (root.color < labels.length) ? labels[root.color] : ""+root.color;
 			}
 			G.setFont(new Font("Courier",0,diam));
 			FontMetrics m = G.getFontMetrics(); //get font metrics
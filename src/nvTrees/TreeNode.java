@@ -21,26 +21,19 @@ public class TreeNode {
 	 * Holds the color of the node;
 	 * the color denotes the dimension along which the 
 	 * pattern corresponding to the tree is cut
-	 * <p><b>Color should be 0 if node is a leaf or an integer from 1 to 9 otherwise 
+	 * <p><b>Color should be 0 if node is a leaf or an integer from 1 to NvTree.MAXCOL-1 otherwise 
 	 */
 	public int color;
 	
-	/**
-	 * The SuperPath to the node. See the documentation for {@link SuperPath} for details.
-	 */
-	private SuperPath superpath;
-	
 	/**
 	 * Reference to the parent node
 	 */
 	public TreeNode parent;
 	
 	/**
-	 * A string of 0's and 1's that holds the path from the root node;
-	 * <b>0 means take the left path
-	 * <b>1 means take the right path
-	 */ 
-	public String path;
+	 * Is this node the left child of its parent ? Not used if parent is null
+	 */
+	private boolean isLeftChild;
 	
 	
 	/**
@@ -53,32 +46,60 @@ public class TreeNode {
 	{
 		if ((color<0)||(color>=NvTree.MAXCOL))
 		{
-			throw new TreeNodeException("The Color you specified for this node, "+color+", is invalid. Must be 0 to "+NvTree.MAXCOL+".");
+			throw new TreeNodeException("The Color you specified for this node, "+color+", is invalid. Must be 0 to "+(NvTree.MAXCOL-1)+".");
 		}
 		this.parent = parent;
 		this.color = color;
-		this.superpath = new SuperPath();
-		if (parent != null)
-		{		
-			String S = parent.path;
-			this.superpath = new SuperPath(parent.superpath);
-			int col = parent.color;			
-			
-			if (isLeftChild)
-			{
-				superpath.appendDown(col, true);
-				this.path = S + '0';				
-			}
-			else
-			{
-				superpath.appendDown(col, false);
-				this.path = S + '1';
-			}
+		this.isLeftChild = isLeftChild;
+	}
+	
+	/**
+	 * Counts the number of nodes on the way from the root to this node
+	 * @return the depth of the node; 0 for the root
+	 */
+	private int getLevel()
+	{
+		int level = 0;
+		for (TreeNode node = this; node.parent != null; node = node.parent)
+		{
+			level++;
 		}
-		else
+		return level;
+	}
+	
+	/**
+	 * Gets the path from the root node: a string of 0's and 1's, where
+	 * <b>0 means take the left path
+	 * <b>1 means take the right path
+	 * <br>The path is not stored; it is computed by walking up to the root.
+	 * @return the path to this node; empty for the root
+	 */
+	public String getPath()
+	{
+		char[] C = new char[getLevel()];
+		int k = C.length;
+		for (TreeNode node = this; node.parent != null; node = node.parent)
 		{
-			this.path="";
-		}		
+			k--;
+			C[k] = node.isLeftChild ? '0' : '1';
+		}
+		return new String(C);
+	}
+	
+	/**
+	 * Makes this node a caret with the given children. The children become
+	 * the left and the right child of this node, wherever they were before.
+	 * @param left the new left child
+	 * @param right the new right child
+	 */
+	void attach(TreeNode left, TreeNode right)
+	{
+		this.left = left;
+		this.right = right;
+		left.parent = this;
+		left.isLeftChild = true;
+		right.parent = this;
+		right.isLeftChild = false;
 	}
 	
 	/**
@@ -116,12 +137,33 @@ public class TreeNode {
 	}
 
 	/**
-	 * Gets the node's superpath 
-	 * @return A copy of the node's superpath
+	 * Gets the node's superpath. See the documentation for {@link SuperPath} for details.
+	 * <br>The superpath is not stored; it is computed by walking up to the root.
+	 * @return A new copy of the node's superpath
 	 */
 	public SuperPath getSuperpath() 
 	{
-		return new SuperPath(superpath);
+		TreeNode[] ancestors = new TreeNode[getLevel()];
+		int k = ancestors.length;
+		for (TreeNode node = this; node.parent != null; node = node.parent)
+		{
+			k--;
+			ancestors[k] = node;
+		}
+		SuperPath ans = new SuperPath();
+		try
+		{
+			for (TreeNode node:ancestors)
+			{
+				ans.appendDown(node.parent.color, node.isLeftChild);
+			}
+		}
+		catch (TreeNodeException e)
+		{
+			//cannot happen: node colors are checked in the constructor
+			throw new IllegalStateException(e.getError());
+		}
+		return ans;
 	}
 
 	
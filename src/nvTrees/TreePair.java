@@ -1,9 +1,14 @@
 package nvTrees;
+import java.io.File;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.Map;
 import java.util.StringTokenizer;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
 import javax.swing.JOptionPane;
 
 
@@ -40,6 +45,17 @@ public class TreePair {
 	 */
 	private  TreePermutation permutation;
 	
+	/**
+	 * The fingerprint of this pair, if it has been computed since the pair was last modified
+	 * (see {@link #fingerprint()})
+	 */
+	private long fingerprint;
+	
+	/**
+	 * True if the fingerprint field is up to date
+	 */
+	private boolean hasFingerprint = false;
+	
 	/**
 	 * Constructs a tree pair from a pair of trees and a permutation
 	 * <ul>
@@ -168,6 +184,7 @@ public class TreePair {
 	{
 		try
 		{
+			unshareTrees();
 			TreeNode node = left_tree.nodeByPath(nodepath);				
 		if (!node.isLeaf())
 		{
@@ -176,19 +193,20 @@ public class TreePair {
 		else
 		{
 			SuperPath left_node, right_node; //Super Paths for the nodes that you're appending a caret to
-			//add caret on the left tree
-			addCaretAt(node, color);
-			
 			left_node =  node.getSuperpath();
+			//look the node up before the trees change: the permutation may have to be read off the leaves
 			if (!permutation.containsKey(left_node))
 			{
 				throw new TreeNodeException("Permutation does not contain this node. Maybe you're tryingto append to right tree.");
 			}
 			right_node = new SuperPath(permutation.get(left_node));
 			
+			//add caret on the left tree
+			left_tree.addCaretAt(node, color);
+			
 //			fix the right tree	
 			TreeNode rnode = right_tree.nodeBySuperPath(right_node);
-			addCaretAt(rnode, color);
+			right_tree.addCaretAt(rnode, color);
 
 			SuperPath LL = new SuperPath(left_node); LL.appendDown(color, true);
 			SuperPath LR = new SuperPath(left_node); LR.appendDown(color, false);
@@ -207,33 +225,6 @@ public class TreePair {
 		}
 	}
 	
-	/**
-	 * Adds a caret at a node. Used internally and should not be called from outside,
-	 * since it does not modify the node permutation.
-	 * @param node node to add a caret to
-	 * @param nodelabel new label assigned to the modified node
-	 */
-	private void addCaretAt(TreeNode node, int nodelabel) throws TreeNodeException
-	{
-		node.color = nodelabel;
-		TreeNode l = new TreeNode(node,0,true);
-		TreeNode r = new TreeNode(node,0,false);
-		node.left = l;
-		node.right = r;
-	}
-
-	/**
-	 * Removes a caret at a node. Used internally and should not be called from outside,
-	 * since it does not modify the node permutation.
-	 * @param node node to remove a caret from
-	 */
-	private void removeCaretAt(TreeNode node) throws TreeNodeException
-	{
-		node.color = 0;
-		node.left = null;
-		node.right = null;
-	}
-	
 	
 	
 	/**
@@ -242,7 +233,7 @@ public class TreePair {
 	 * <br>
 	 * Call the invert() method to perform this operation on the right tree 
 	 * Exception is thrown if the formatting is incorrect. Path must be a sequence of 0's and 1's;
-	 * label must be an integer in 1..9 An exception is thrown if the tree does not contain the path.
+	 * label must be an integer in 1..NvTree.MAXCOL-1 An exception is thrown if the tree does not contain the path.
 	 */
 	public void addCaretOnLeftTreeAt(String path_and_label) throws TreeNodeException, TreeNodeException
 	{
@@ -279,6 +270,7 @@ public class TreePair {
 		this.left_tree = this.right_tree;
 		this.right_tree = temp;
 		this.permutation.invert();
+		this.hasFingerprint = false;
 	}
 
 	
@@ -298,14 +290,15 @@ public class TreePair {
 	 */
 	public void extendLeftTree(int mindim, int mindepth) throws TreeNodeException
 	{
+		unshareTrees();
 		int [] colcount = this.left_tree.getColorDepths();
 		int L=colcount.length-1;
 		while ((L>0)&&(colcount[L]==0)) {L--;}
 		L = Math.max(L,mindim);
 		int D = Math.max(left_tree.maxColorDepth(), mindepth);
-		int[] directive = new int[10];
+		int[] directive = new int[L+1];
 		for (int i=1;i<=L;i++) {directive[i]=D;}		
-		extendLeftTreeAt(left_tree.rootNode, directive);
+		extendLeftTreeTo(directive);
 	}
 
 	
@@ -317,42 +310,116 @@ public class TreePair {
 	 */
 	public void extendLeftTree(int[] colors) throws TreeNodeException
 	{
+		unshareTrees();
 		int [] colcount = this.left_tree.getColorDepths();
 		int [] M = max(colcount, colors);		
-		extendLeftTreeAt(left_tree.rootNode, M);
+		extendLeftTreeTo(M);
 	}
 	
 	
 	/**
-	 * Extends the subtree at a given node so that each color appears at least
-	 * a certain amount of times
-	 * @param node the root of the subtree to expand at
+	 * Extends the left tree so that each color appears at least a certain amount of times
+	 * on each root-leaf path, and extends the right tree the same way.
+	 * <br>
+	 * Both trees are extended in one traversal: each leaf of the left tree gets the same subtree of new carets
+	 * as its image in the right tree, and the permutation is rebuilt once at the end.
 	 * @param colors array containing the minimum number of times each color should occur.
-	 * Value in colors[i] = #times color i should occur, for i>0.
+	 * Value in colors[i] = #times color i should occur, for i>0. It is used as scratch space.
 	 */
-	private void extendLeftTreeAt(TreeNode node, int[]colors) throws TreeNodeException
+	private void extendLeftTreeTo(int[] colors) throws TreeNodeException
 	{
+		int[] perm = permutation.toArray();
+		permutation.forgetTrees();	//it is rebuilt at the end
+		ArrayList<TreeNode> left_leaves = new ArrayList<TreeNode>();
+		ArrayList<TreeNode> right_leaves = new ArrayList<TreeNode>();
+		leavesAt(left_tree.rootNode, left_leaves);
+		leavesAt(right_tree.rootNode, right_leaves);
+		TreeNode[] image = new TreeNode[perm.length];
+		for (int i=0;i<perm.length;i++)
+		{
+			image[perm[i]-1] = right_leaves.get(i);
+		}
+		int[] size = new int[perm.length];		//number of leaves each leaf is extended to
 		colors[0]=0; //ignore color 0
-		int C = firstPositive(colors);
-		if (C>0)  //if we still have to add nodes of a certain color  
+		extendLeftTreeAt(left_tree.rootNode, colors, image, size, new int[]{0});
+		
+		//the new leaves under a leaf and under its image are in the same order
+		int[] leftStart = new int[perm.length];
+		for (int i=1;i<perm.length;i++)
 		{
-			if (node.isLeaf())
-			{	
-				try{addCaretOnLeftTreeAt(node.path, C);}
-				catch(TreeNodeException e)
-				{
-					throw new TreeNodeException(e.errorString);
-				}
+			leftStart[i] = leftStart[i-1] + size[i-1];
+		}
+		int[] ans = new int[leftStart[perm.length-1] + size[perm.length-1]];
+		int k = 0;
+		for (int i=0;i<perm.length;i++)
+		{
+			int j = perm[i]-1;
+			for (int t=0;t<size[j];t++)
+			{
+				ans[k] = leftStart[j]+t+1;
+				k++;
 			}
-			
+		}
+		setPermutation(new TreePermutation(left_tree, right_tree, ans));
+	}
+	
+	/**
+	 * Extends the subtree at a given node so that each color appears at least
+	 * a certain amount of times, along with the images of its leaves
+	 * @param node the root of the subtree to expand at
+	 * @param colors array containing the minimum number of times each color should occur.
+	 * Value in colors[i] = #times color i should occur, for i>0. It is restored when done.
+	 * @param image image[i] is the leaf of the right tree that the i'th leaf of the left tree goes to
+	 * @param size size[i] is set to the number of leaves the i'th leaf of the left tree is extended to
+	 * @param leaf holds the index of the first leaf of the subtree
+	 */
+	private void extendLeftTreeAt(TreeNode node, int[] colors, TreeNode[] image, int[] size, int[] leaf) throws TreeNodeException
+	{
+		if (firstPositive(colors)<=0)  //nothing to add in this subtree
+		{
+			int n = node.getNumLeaves();
+			Arrays.fill(size, leaf[0], leaf[0]+n, 1);
+			leaf[0] += n;
+		}
+		else if (node.isLeaf())
+		{
+			size[leaf[0]] = growAt(node, image[leaf[0]], colors);
+			leaf[0]++;
+		}
+		else
+		{
 			int c = node.color;
-			int[] newcol = arrCopy(colors);
-			newcol[c]=newcol[c]-1;
-			extendLeftTreeAt(node.left, newcol);
-			extendLeftTreeAt(node.right, newcol);
+			colors[c]--;
+			extendLeftTreeAt(node.left, colors, image, size, leaf);
+			extendLeftTreeAt(node.right, colors, image, size, leaf);
+			colors[c]++;
 		}
 	}
 	
+	/**
+	 * Adds the same carets below a leaf of the left tree and a leaf of the right tree, 
+	 * so that each color appears at least a certain amount of times below them.
+	 * The colors are added in increasing order.
+	 * @param L a leaf of the left tree
+	 * @param R a leaf of the right tree
+	 * @param colors colors[i] is the number of times color i should be added. It is restored when done. 
+	 * @return the number of leaves below L (and R) after the carets are added
+	 */
+	private int growAt(TreeNode L, TreeNode R, int[] colors) throws TreeNodeException
+	{
+		int C = firstPositive(colors);
+		if (C<=0)
+		{
+			return 1;
+		}
+		left_tree.addCaretAt(L, C);
+		right_tree.addCaretAt(R, C);
+		colors[C]--;
+		int n = growAt(L.left, R.left, colors) + growAt(L.right, R.right, colors);
+		colors[C]++;
+		return n;
+	}
+	
 	
 	/**
 	 * Returns the largest integer in the array
@@ -379,25 +446,23 @@ public class TreePair {
 
 	/**
 	 * Returns the array with the larger element from the two arrays for each index
+	 * <br>
+	 * Arrays of different lengths are compared as if the shorter one was padded with zeros
+	 * (e.g. color depths of trees of different dimensions).
 	 * @param A the first array
 	 * @param B the other array
 	 * @return array where ans[i]=max(a[i],b[i])
 	 */
-	public static int[] max(int[] A, int[]B) throws TreeNodeException
+	public static int[] max(int[] A, int[]B)
 	{
-		if (A.length != B.length)
+		int[] M = new int[Math.max(A.length, B.length)];
+		for (int i=0;i<M.length;i++)
 		{
-			throw new TreeNodeException("Arrays lengths do not match !");
-		}
-		else
-		{
-			int[] M = new int[A.length];
-			for (int i=0;i<A.length;i++)
-			{
-				M[i]=Math.max(A[i], B[i]);
-			}
-			return M;
+			int a = (i<A.length) ? A[i] : 0;
+			int b = (i<B.length) ? B[i] : 0;
+			M[i]=Math.max(a, b);
 		}
+		return M;
 	}
 	
 	/**
@@ -444,6 +509,7 @@ public class TreePair {
 	 */
 	public void resetPermutation() throws TreeNodeException
 	{
+		unshareTrees();
 		this.permutation.reset();
 	}
 
@@ -470,16 +536,51 @@ public class TreePair {
 		 *  TreePermutation)
 		 */
 		this.permutation = permutation;
+		this.hasFingerprint = false;
 	}
 	
 	
 	/**
 	 * Reduces the tree pair by removing exposed carets
-	 *
+	 * @return the number of carets removed
 	 */
-	public void removeExposedCarets()
+	public int removeExposedCarets()
 	{
-		reduceLeftTreeAt(left_tree.rootNode);
+		try
+		{
+			unshareTrees();
+			return cancelExposedCarets();
+		}
+		catch(TreeNodeException e)
+		{
+			JOptionPane.showMessageDialog(null, "Unknown error during tree reduction: \n"+e.errorString);
+			return 0;
+		}
+	}
+	
+	/**
+	 * Makes sure that this pair is the only owner of its trees, copying the ones that are
+	 * used by other pairs (see {@link NvTree#isShared()}), and forgets the fingerprint. 
+	 * Must be called before the pair is modified.
+	 */
+	private void unshareTrees() throws TreeNodeException
+	{
+		hasFingerprint = false;
+		if (left_tree.isShared())
+		{
+			NvTree T = left_tree.duplicate();
+			left_tree.release();
+			left_tree = T;
+			permutation.left_tree = T;
+		}
+		if (right_tree.isShared())
+		{
+			NvTree T = right_tree.duplicate();
+			right_tree.release();
+			right_tree = T;
+			permutation.right_tree = T;
+		}
+		permutation.watchTrees();
 	}
 	
 	
@@ -540,18 +641,35 @@ public class TreePair {
 	 * is the pair in which the left pattern is the smallest grid.
 	 * <p>
 	 * If set to true, the unique smallest grid on the left is greedily reduced. 
+	 * <p>
+	 * For a multidimensional pair, the smallest grid is found without extending the left tree
+	 * to a full grid (see {@link GridReduction}), unless some color path is too long for that.
+	 * A one-dimensional pair is reduced directly, see {@link #reduceOneDimensional()}. 
 	 * @return a new canonical treepair
 	 */
 	public TreePair reduce(boolean mergeBlocks) throws TreeNodeException 
 	{
+		if (mergeBlocks && !isMultiDimensional(this))
+		{
+			return reduceOneDimensional();
+		}
 		//TODO: check that this does not mess up the uniqueness. 
+		unshareTrees();
+		HashMap<SuperPath, SuperPath> map = null;
 		if (isMultiDimensional(this))
 		{
-			extendToLeftFlat();
+			map = GridReduction.reduce(this, mergeBlocks);
+			if (map == null)
+			{
+				extendToLeftFlat();
+			}
+		}
+		if (map == null)
+		{
+			map = this.getPermutation().getMap();
+			reduceGrid(map);
+			if (mergeBlocks){ mergeBlocks(map);}
 		}
-		HashMap<SuperPath, SuperPath> map = this.getPermutation().permutationMap;
-		reduceGrid(map);
-		if (mergeBlocks){ mergeBlocks(map);}
 		NvTree Ltree = NvTree.fromPattern(map.keySet());
 		NvTree Rtree = NvTree.fromPattern(map.values());
 		TreePermutation perm = new TreePermutation(Ltree,Rtree,map);
@@ -559,6 +677,119 @@ public class TreePair {
 		return p;			
 	}		
 	
+	/**
+	 * Returns the reduced representative of a one-dimensional tree pair (an element of F, T or V).
+	 * <br>
+	 * In one dimension, two leaves can be merged exactly when they form an exposed caret, so the reduced
+	 * pair is the one that has no exposed carets (see {@link #removeExposedCarets()}).
+	 * @return a new reduced treepair; this pair is not changed
+	 */
+	private TreePair reduceOneDimensional() throws TreeNodeException
+	{
+		TreePair T = duplicate();
+		T.cancelExposedCarets();
+		return T;
+	}
+	
+	/**
+	 * Removes the exposed carets of this pair, until there are none left.
+	 * <br>
+	 * The leaves of the left tree are matched with the leaves of the right tree node to node,
+	 * so each caret is checked and removed in constant time. Only the carets whose children are both leaves
+	 * can be exposed, and removing a caret can only make its parent such a caret, so the carets
+	 * to check are kept in a work list: each caret is checked once, and once more for each of its children
+	 * that is removed. The permutation is rebuilt once, at the end. For a pair with n leaves, this takes O(n).
+	 * <p>
+	 * Removing an exposed caret does not change whether the other carets are exposed, so the result 
+	 * does not depend on the order in which they are removed.
+	 * @return the number of carets removed
+	 */
+	private int cancelExposedCarets() throws TreeNodeException
+	{
+		ArrayList<TreeNode> left_leaves = new ArrayList<TreeNode>();
+		ArrayList<TreeNode> right_leaves = new ArrayList<TreeNode>();
+		leavesAt(left_tree.rootNode, left_leaves);
+		leavesAt(right_tree.rootNode, right_leaves);
+		int[] perm = permutation.toArray();
+		permutation.forgetTrees();	//it is rebuilt at the end
+		IdentityHashMap<TreeNode, TreeNode> image = new IdentityHashMap<TreeNode, TreeNode>();
+		ArrayDeque<TreeNode> work = new ArrayDeque<TreeNode>();
+		for (int i=0;i<perm.length;i++)
+		{
+			image.put(left_leaves.get(perm[i]-1), right_leaves.get(i));
+		}
+		for (TreeNode leaf:left_leaves)
+		{
+			TreeNode node = leaf.parent;
+			if ((node!=null)&&(node.left==leaf)&&node.right.isLeaf())
+			{
+				work.add(node);
+			}
+		}
+		
+		int count = 0;
+		while (!work.isEmpty())
+		{
+			TreeNode node = work.poll();
+			TreeNode RL = image.get(node.left);
+			TreeNode RR = image.get(node.right);
+			TreeNode R = RL.parent;	//supposed common parent of RL and RR
+			if ((R!=null)&&(R.left==RL)&&(R.right==RR)&&(R.color==node.color))
+			{
+				image.remove(node.left);
+				image.remove(node.right);
+				left_tree.removeCaretAt(node);
+				right_tree.removeCaretAt(R);
+				image.put(node, R);
+				count++;
+				TreeNode parent = node.parent;
+				if ((parent!=null)&&parent.left.isLeaf()&&parent.right.isLeaf())
+				{
+					work.add(parent);
+				}
+			}
+		}
+		if (count==0)
+		{
+			return 0;
+		}
+		
+		left_leaves.clear();
+		right_leaves.clear();
+		leavesAt(left_tree.rootNode, left_leaves);
+		leavesAt(right_tree.rootNode, right_leaves);
+		IdentityHashMap<TreeNode, Integer> right_index = new IdentityHashMap<TreeNode, Integer>();
+		for (int i=0;i<right_leaves.size();i++)
+		{
+			right_index.put(right_leaves.get(i), i);
+		}
+		int[] ans = new int[left_leaves.size()];
+		for (int i=0;i<ans.length;i++)
+		{
+			ans[right_index.get(image.get(left_leaves.get(i)))] = i+1;
+		}
+		setPermutation(new TreePermutation(left_tree, right_tree, ans));
+		return count;
+	}
+	
+	/**
+	 * Lists the leaves of a subtree, in depth-first order
+	 * @param node the root of the subtree
+	 * @param leaves the list to add the leaves to
+	 */
+	static void leavesAt(TreeNode node, ArrayList<TreeNode> leaves)
+	{
+		if (node.isLeaf())
+		{
+			leaves.add(node);
+		}
+		else
+		{
+			leavesAt(node.left, leaves);
+			leavesAt(node.right, leaves);
+		}
+	}
+	
 	/**
 	 * Extends the left tree to a flat tree
 	 *
@@ -573,56 +804,15 @@ public class TreePair {
 	 * This operation reduces a grid of blocks to a supergrid (a less finer grid).
 	 * Since grid reductions commute, if you start from a grid representative,
 	 * you get a unque reduced grid.
+	 * <br>
+	 * For i=1,2,..., as long as all the blocks can be merged in pairs along color i, they are.
+	 * The pairs are found by looking up siblings (see {@link BlockMerger}).
 	 * @param map
 	 * @throws TreeNodeException
 	 */
 	public static void reduceGrid(Map<SuperPath, SuperPath>map) throws TreeNodeException
 	{
-		
-		int curcol = 1;		
-		while (curcol < NvTree.MAXCOL)
-		{
-			if (map.keySet().size() == 1) {return;}
-			ArrayList<SuperPath> blocks= new ArrayList<SuperPath>(map.keySet());
-			Collections.sort(blocks, new SuperPathComparator(curcol));
-			ArrayList<SuperPath> mergeables = new ArrayList<SuperPath>();		
-			boolean canmerge = true;
-			while (canmerge&&(blocks.size()>0))
-			{
-				SuperPath LL = blocks.get(0);			
-				SuperPath LR = blocks.get(1);
-				if ((LL.isAdjacentTo(LR)==curcol)&&(areMergeable(LL, LR, map))) //if L is adjacent along curcol
-				{				
-					blocks.remove(0);
-					blocks.remove(0);			//after the loop is done, if canmerge is true					
-					mergeables.add(LL);			//then mergables has all the blocks
-					mergeables.add(LR);			//and thus all the blocks can be merged along curcol
-				}
-				else {canmerge = false;}
-			}
-			if (canmerge)						
-			{
-				while (mergeables.size()>0)
-				{
-					SuperPath LL = mergeables.get(0);
-					SuperPath LR = mergeables.get(1);
-					SuperPath LM = new SuperPath(LL);
-					SuperPath RL = map.get(LL);		
-					SuperPath RM = new SuperPath(RL);
-					LM.goUp(curcol);	//this is the merge of LL and LR
-					RM.goUp(curcol);	//this is the merge of RM and RR			
-					map.remove(LL);
-					map.remove(LR);
-					map.put(LM, RM);
-					mergeables.remove(0);
-					mergeables.remove(0);
-				}
-			}
-			else
-			{
-				curcol++;
-			}
-		}
+		patternPairMerger(map).mergeGrid();
 	}
 	
 	
@@ -632,70 +822,70 @@ public class TreePair {
 	/**
 	 * This code merges the blocks in a pattern pair color-greedily:
 	 * it merges the blocks along the least dimension that's available. 
-	 * I.e., it merges blocks along color 1 whenever possible; if not,
-	 * tries color 2, then 3, etc. After each merge, the blocks are re-examined.
+	 * I.e., it merges all the mergeable pairs along color 1 whenever there are any; if not,
+	 * tries color 2, then 3, etc. After each such round, the blocks are re-examined, starting with color 1.
 	 * NOTE that this may or may not yield a unque pattern, even when going down
 	 * from a rectangular or square grid. We didn't prove yet that the algorithm will yield
-	 * the same result when going down from finer / different grids. Also, the proof
-	 * (and the algorithm) depends on how the SuperPathComparator is implemented
-	 * (i.e., what order the blocks have when sorted); it REQUIRES that blocks
-	 * adjacent along color i be adjacent in the list sort with SuperPathComparator(i).
-	 * TODO
-	 * -Optimize
-	 * -Merge code with NvTree.fromPattern()
+	 * the same result when going down from finer / different grids. 
+	 * <p>
+	 * The mergeable pairs are found by looking up siblings, and kept in per-color work lists
+	 * that are updated as blocks are merged (see {@link BlockMerger}), so there is no sorting.
+	 * This is the same merging as in NvTree.fromPattern(), 
+	 * except that the images of the blocks have to be merged too.
 	 * @param  map the Map between two patterns that defines a pattern pair
 	 * @throws TreeNodeException
 	 */
 	public static void mergeBlocks(Map<SuperPath, SuperPath>map) throws TreeNodeException	
 	{
-		ArrayList<SuperPath> blocks= new ArrayList<SuperPath>(map.keySet());
-		int i=0;
-		int curcol = 1;		
-		boolean found = false;
-		boolean searchmore=true;
-		if (blocks.size() < 2) {searchmore = false;}
-		Collections.sort(blocks, new SuperPathComparator(curcol));
-		while (searchmore)	
-		{	 
-			SuperPath LL = blocks.get(i);			
-			SuperPath LR = blocks.get(i+1);
-			if ((LL.isAdjacentTo(LR)==curcol)&&(areMergeable(LL, LR, map))) //if L is adjacent along curcol
-			{				
-				found = true;				  		//..then we have found a mergeable pair
-				SuperPath LM = new SuperPath(LL);
-				SuperPath RL = map.get(LL);		
-				SuperPath RM = new SuperPath(RL);
-				LM.goUp(curcol);	//this is the merge of LL and LR
-				RM.goUp(curcol);				
-				map.remove(LL);
-				map.remove(LR);
-				map.put(LM, RM);
-				blocks.remove(LL);
-				blocks.remove(LR);
-				blocks.add(LM);
-				Collections.sort(blocks, new SuperPathComparator(curcol));				
+		patternPairMerger(map).mergeRounds();
+	}
+	
+	/**
+	 * Returns a BlockMerger that merges the blocks of a pattern pair:
+	 * two sibling blocks can be merged if they map to sibling blocks in the same order
+	 * (see {@link #areMergeable(SuperPath, SuperPath, Map)}), and the merged block maps to the 
+	 * merge of their images.
+	 * @param map the Map between two patterns that defines a pattern pair
+	 */
+	private static BlockMerger<SuperPath> patternPairMerger(Map<SuperPath, SuperPath>map)
+	{
+		return new BlockMerger<SuperPath>(map, dimensionOf(map))
+		{
+			protected boolean canMerge(SuperPath L, SuperPath R, int color) throws TreeNodeException
+			{
+				SuperPath RL = blocks.get(L);
+				SuperPath RR = blocks.get(R);
+				int len = RL.getColLength(color);
+				return (len>0)&&(RL.symbolAt(color, len-1)==0)&&RR.equals(RL.getSibling(color));
 			}
-			if (i<blocks.size()-2){i++;} else 
-			{				
-				if (!found)
-				{
-					curcol++;
-					if (curcol<NvTree.MAXCOL)
-					{
-						Collections.sort(blocks, new SuperPathComparator(curcol));	
-					} 
-					else {searchmore=false;}//if not found anything in all colors, we're done 
-					
-				}
-				else {curcol = 1; i=0;} //if a merge was made, we start all over.
-				found = false;
-				i=0;
+			
+			protected SuperPath merge(SuperPath RL, SuperPath RR, int color) throws TreeNodeException
+			{
+				SuperPath RM = new SuperPath(RL);
+				RM.goUp(color);
+				return RM;
 			}
-			if (blocks.size()==1) {searchmore = false;} //maybe we just merged everyting and got the identity
-		}
+		};
 	}
 	
 	
+	/**
+	 * Returns the dimension of a pattern pair, i.e. the largest color 
+	 * used by any of its blocks
+	 * @param map the Map between two patterns that defines a pattern pair
+	 * @return the largest color in which some block has a non-empty color path
+	 */
+	static int dimensionOf(Map<SuperPath, SuperPath>map)
+	{
+		int dim = 0;
+		for (Map.Entry<SuperPath, SuperPath> E:map.entrySet())
+		{
+			dim = Math.max(dim, E.getKey().getDimension());
+			dim = Math.max(dim, E.getValue().getDimension());
+		}
+		return dim;
+	}
+	
 	/**
 	 * Given two blocks A and B, tells whethe they can be merged into one
 	 * (i.e. if they are adjacent and map to adjacent blocks in the same order
@@ -714,8 +904,9 @@ public class TreePair {
 			SuperPath RB = map.get(B);
 			if (RA.isAdjacentTo(RB)==curcol) //if the blocks that A and B map to are adjacent...					
 			{
-				SuperPathComparator comp = new SuperPathComparator(curcol);
-				if (comp.compare(A, B)==comp.compare(RA, RB))   //...and the order (left/right top/bottom etc.) is preserved..
+				int a = A.symbolAt(curcol, A.getColLength(curcol)-1);
+				int ra = RA.symbolAt(curcol, RA.getColLength(curcol)-1);
+				if (a==ra)   //...and the order (left/right top/bottom etc.) is preserved..
 				{
 					return true;
 				}
@@ -729,21 +920,6 @@ public class TreePair {
 	
 	
 	
-	/**
-	 * Reduces a subtree of a left tree
-	 * @param node the root of the subtree of the left tree
-	 */
-	private void reduceLeftTreeAt(TreeNode node)
-	{
-		 if (!node.isLeaf())
-		 {
-			 reduceLeftTreeAt(node.left);
-			 reduceLeftTreeAt(node.right);
-			 removeCaretOnLeftTreeAt(node);
-		 }
-	}
-	
-	
 	/**
 	 * Attempts to reduce an exposed caret. 
 	 * @param path path to the exposed caret
@@ -751,6 +927,7 @@ public class TreePair {
 	 */
 	public boolean removeCaretOnLeftTreeAt(String path) throws TreeNodeException
 	{
+		unshareTrees();
 		TreeNode node = left_tree.nodeByPath(path);
 		return removeCaretOnLeftTreeAt(node);
 	}
@@ -783,8 +960,8 @@ public class TreePair {
 			permutation.put(node.getSuperpath(), R.getSuperpath());
 			
 			//fix tree
-			removeCaretAt(node);
-			removeCaretAt(R);
+			left_tree.removeCaretAt(node);
+			right_tree.removeCaretAt(R);
 			
 			return true;
 		}
@@ -919,32 +1096,27 @@ public class TreePair {
 		try{ 
 		int[] ans = new int[n+1];
 		ans[0] = 1;
-		HashMap<String, TreePair> currentWords = new HashMap<String, TreePair>();
-		HashMap<String, TreePair> lastAddedWords = new HashMap<String, TreePair>();
-		HashMap<String, TreePair> newWords = new HashMap<String, TreePair>();
+		TreePairSet currentWords = new TreePairSet();
+		ArrayList<TreePair> lastAddedWords = new ArrayList<TreePair>();
 		
 		TreePair id = new TreePair("0,0,1");
-		currentWords.put(id.toString(), id);
-		lastAddedWords.put(id.toString(), id);
+		currentWords.add(id);
+		lastAddedWords.add(id);
 		for (int i=1; i<=n; i++){
-			newWords.clear();
-			for (TreePair w : lastAddedWords.values())
+			ArrayList<TreePair> newWords = new ArrayList<TreePair>();
+			for (TreePair w : lastAddedWords)
 			{
 				for (TreePair g : S)
 				{
 					TreePair wNew = compose(w, g);
 					wNew = wNew.reduce();
-					newWords.put(wNew.toString(), wNew);
-				}
-			}
-			lastAddedWords.clear();
-			for (String wStr: newWords.keySet()){
-				if (!currentWords.containsKey(wStr))
-				{
-					currentWords.put(wStr, newWords.get(wStr));
-					lastAddedWords.put(wStr, newWords.get(wStr));
+					if (currentWords.add(wNew))
+					{
+						newWords.add(wNew);
+					}
 				}
 			}
+			lastAddedWords = newWords;
 			ans[i] = currentWords.size();
 		}
 		
@@ -955,6 +1127,279 @@ public class TreePair {
 		}
 	}
 	
+	/**
+	 * Computes the growth function \gamma(k) of the semigroup generated by S for k=1..n, 
+	 * like {@link #growth(ArrayList, int)}, using all the available processors.
+	 * <br>
+	 * The products of the words of a sphere with the generators do not depend on each other,
+	 * so the sphere is split in chunks that are multiplied out in parallel (see {@link GrowthTask}),
+	 * and the new words are put in one TreePairSet shared by all the threads. 
+	 * The words that are found are the same as in growth(), so the result is the same; only the order
+	 * of the words in a sphere may be different.
+	 * @param S a generating set (a collection of TreePairs representing functions in the group)
+	 * @param n the value of the growth function to compute up to
+	 * @return
+	 * an array whose i'th value is the number of distinct (w.r.t. the group) words of length i
+	 * in alphabet with letters in S
+	 * @throws TreeNodeException
+	 */
+	public static int[] growthParallel(ArrayList<TreePair> S, int n) throws TreeNodeException{
+		return growthParallel(S, n, false);
+	}
+	
+	/**
+	 * Computes the growth function \gamma(k) of the semigroup generated by S for k=1..n, 
+	 * using all the available processors (see {@link #growthParallel(ArrayList, int)}).
+	 * <br>
+	 * If S is symmetric, i.e. contains the inverse of each of its elements, then a word of length k+1 
+	 * can only be equal to a word of length k-1, k or k+1. In that case only the last two spheres
+	 * are kept to check whether a word is new, so the memory used is proportional to 
+	 * the largest sphere, and not to the whole ball.  
+	 * @param S a generating set (a collection of TreePairs representing functions in the group)
+	 * @param n the value of the growth function to compute up to
+	 * @param symmetric set to true only if S contains the inverse of each of its elements
+	 * @return
+	 * an array whose i'th value is the number of distinct (w.r.t. the group) words of length i
+	 * in alphabet with letters in S
+	 * @throws TreeNodeException
+	 */
+	public static int[] growthParallel(ArrayList<TreePair> S, int n, boolean symmetric) throws TreeNodeException{
+		return growthParallel(S, n, symmetric, false);
+	}
+	
+	/**
+	 * Computes the growth function \gamma(k) of the semigroup generated by S for k=1..n, 
+	 * using all the available processors (see {@link #growthParallel(ArrayList, int, boolean)}).
+	 * @param S a generating set (a collection of TreePairs representing functions in the group)
+	 * @param n the value of the growth function to compute up to
+	 * @param symmetric set to true only if S contains the inverse of each of its elements
+	 * @param offHeap if true, the words that have been found are kept outside of the Java heap 
+	 * (see {@link TreePairSet#TreePairSet(boolean)}); only the last sphere is kept as TreePairs
+	 * @return
+	 * an array whose i'th value is the number of distinct (w.r.t. the group) words of length i
+	 * in alphabet with letters in S
+	 * @throws TreeNodeException
+	 */
+	public static int[] growthParallel(ArrayList<TreePair> S, int n, boolean symmetric, boolean offHeap) throws TreeNodeException{
+		try{
+		int[] ans = new int[n+1];
+		ans[0] = 1;
+		TreePairSet previousWords = new TreePairSet(offHeap);	//the sphere before the last one, if symmetric
+		TreePairSet currentWords = new TreePairSet(offHeap);	//the last sphere if symmetric, the whole ball otherwise
+		ArrayList<TreePair> lastAddedWords = new ArrayList<TreePair>();
+		
+		for (TreePair g : S)
+		{
+			g.fingerprint(); //compute the cached shapes and permutation array before the generators are shared
+		}
+		TreePair id = new TreePair("0,0,1");
+		currentWords.add(id);
+		lastAddedWords.add(id);
+		ForkJoinPool pool = ForkJoinPool.commonPool();
+		for (int i=1; i<=n; i++){
+			if (symmetric)
+			{
+				TreePairSet newWords = new TreePairSet(offHeap);
+				TreePairSet[] known = {previousWords, currentWords};
+				lastAddedWords = pool.invoke(new GrowthTask(lastAddedWords, 0, lastAddedWords.size(), S, known, newWords));
+				ans[i] = ans[i-1] + newWords.size();
+				previousWords = currentWords;
+				currentWords = newWords;
+			}
+			else
+			{
+				TreePairSet[] known = {};
+				lastAddedWords = pool.invoke(new GrowthTask(lastAddedWords, 0, lastAddedWords.size(), S, known, currentWords));
+				ans[i] = currentWords.size();
+			}
+		}
+		
+		return ans;
+		}
+		catch (GrowthException e){
+			throw new TreeNodeException("Error occurred during growth computation: \n" + e.error.errorString);
+		}
+		catch (TreeNodeException e){
+			throw new TreeNodeException("Error occurred during growth computation: \n" + e.errorString);
+		}
+	}
+	
+	/**
+	 * Computes the growth function \gamma(k) of the semigroup generated by S for k=1..n, 
+	 * keeping the spheres in files instead of memory, so that balls larger than the memory can be counted.
+	 * The words of each sphere are multiplied by the generators in batches of at most budget bytes, 
+	 * which are sorted and written to disk, and the new sphere is found by merging the batches 
+	 * with the files of the earlier spheres (see {@link ExternalGrowth}).
+	 * @param S a generating set (a collection of TreePairs representing functions in the group)
+	 * @param n the value of the growth function to compute up to
+	 * @param symmetric set to true only if S contains the inverse of each of its elements; 
+	 * then only the last two spheres are kept on disk
+	 * @param dir the directory for the files, or null to use a new temporary directory. 
+	 * A checkpoint is written to dir after each sphere, and the files of the last spheres are kept; if dir already holds
+	 * a checkpoint of the same computation, it goes on from there (see {@link #resumeGrowth(File, int, long)})
+	 * @param budget the memory (approximately, in bytes) used for each batch of products
+	 * @return
+	 * an array whose i'th value is the number of distinct (w.r.t. the group) words of length i
+	 * in alphabet with letters in S
+	 * @throws TreeNodeException
+	 */
+	public static int[] growthOnDisk(ArrayList<TreePair> S, int n, boolean symmetric, File dir, long budget) throws TreeNodeException{
+		try{
+			return ExternalGrowth.growth(S, n, symmetric, dir, budget);
+		}
+		catch (TreeNodeException e){
+			throw new TreeNodeException("Error occurred during growth computation: \n" + e.errorString);
+		}
+	}
+	
+	/**
+	 * Continues a growth computation of {@link #growthOnDisk(ArrayList, int, boolean, File, long)} 
+	 * from the last sphere that was done, using the generators that are saved in the checkpoint. 
+	 * This finishes a computation that was interrupted, or extends a finished one to larger n 
+	 * without computing the first spheres again.
+	 * @param dir the directory of the computation
+	 * @param n the value of the growth function to compute up to
+	 * @param budget the memory (approximately, in bytes) used for each batch of products
+	 * @return
+	 * an array whose i'th value is the number of distinct (w.r.t. the group) words of length i
+	 * in alphabet with letters in S
+	 * @throws TreeNodeException if there is no checkpoint in dir
+	 */
+	public static int[] resumeGrowth(File dir, int n, long budget) throws TreeNodeException{
+		try{
+			return ExternalGrowth.resume(dir, n, budget);
+		}
+		catch (TreeNodeException e){
+			throw new TreeNodeException("Error occurred during growth computation: \n" + e.errorString);
+		}
+	}
+	
+	/**
+	 * Multiplies a chunk of a sphere by the generators, for {@link TreePair#growthParallel(ArrayList, int)}. 
+	 * Large chunks are split in two halves that are done in parallel.
+	 * <br>
+	 * Returns the new words, in the order in which the products are listed (words first, then generators).
+	 */
+	private static class GrowthTask extends RecursiveTask<ArrayList<TreePair>>
+	{
+		static final long serialVersionUID = 1; 
+		
+		/**
+		 * Chunks of at most this many words are not split
+		 */
+		private static final int CHUNK = 4;
+		
+		/**
+		 * The words of the sphere; the chunk is words[from..to-1]
+		 */
+		private final ArrayList<TreePair> words;
+		private final int from, to;
+		
+		/**
+		 * The generators
+		 */
+		private final ArrayList<TreePair> S;
+		
+		/**
+		 * Words found in the earlier spheres that a product can be equal to
+		 */
+		private final TreePairSet[] known;
+		
+		/**
+		 * The new words found so far, shared by all the tasks
+		 */
+		private final TreePairSet newWords;
+		
+		/**
+		 * Prepares the multiplication of a chunk of a sphere
+		 * @param words the words of the sphere
+		 * @param from the index of the first word of the chunk
+		 * @param to the index after the last word of the chunk
+		 * @param S the generators
+		 * @param known words that are not new; they are only read
+		 * @param newWords the new words found so far; the new words are added to it
+		 */
+		GrowthTask(ArrayList<TreePair> words, int from, int to, ArrayList<TreePair> S, TreePairSet[] known, TreePairSet newWords)
+		{
+			this.words = words;
+			this.from = from;
+			this.to = to;
+			this.S = S;
+			this.known = known;
+			this.newWords = newWords;
+		}
+		
+		protected ArrayList<TreePair> compute()
+		{
+			if (to-from > CHUNK)
+			{
+				int mid = (from+to)>>>1;
+				GrowthTask second = new GrowthTask(words, mid, to, S, known, newWords);
+				second.fork();
+				ArrayList<TreePair> ans = new GrowthTask(words, from, mid, S, known, newWords).compute();
+				ans.addAll(second.join());
+				return ans;
+			}
+			ArrayList<TreePair> ans = new ArrayList<TreePair>();
+			try
+			{
+				for (int i=from; i<to; i++)
+				{
+					for (TreePair g : S)
+					{
+						TreePair wNew = compose(words.get(i), g);
+						wNew = wNew.reduce();
+						if (!isKnown(wNew) && newWords.add(wNew))
+						{
+							ans.add(wNew);
+						}
+					}
+				}
+			}
+			catch (TreeNodeException e)
+			{
+				throw new GrowthException(e);
+			}
+			return ans;
+		}
+		
+		/**
+		 * Tells whether a word is in one of the known sets
+		 * @param w a word
+		 * @return true if w is known
+		 */
+		private boolean isKnown(TreePair w) throws TreeNodeException
+		{
+			for (TreePairSet K : known)
+			{
+				if (K.contains(w))
+				{
+					return true;
+				}
+			}
+			return false;
+		}
+	}
+	
+	/**
+	 * Carries a TreeNodeException out of a {@link GrowthTask}, which can only throw unchecked exceptions 
+	 */
+	private static class GrowthException extends RuntimeException
+	{
+		static final long serialVersionUID = 1; 
+		
+		/**
+		 * The exception thrown by the computation
+		 */
+		final TreeNodeException error;
+		
+		GrowthException(TreeNodeException error)
+		{
+			super(error);
+			this.error = error;
+		}
+	}
+	
 	
 	
 	/**
@@ -966,35 +1411,33 @@ public class TreePair {
 	 */
 	public static TreePair refineLeftTreeTo(TreePair A, NvTree T) throws TreeNodeException{
 		ArrayList<SuperPath> ALTblocks = A.left_tree.detailedDFS();
-		ArrayList<SuperPath> Tblocks = T.detailedDFS();
-		
 		ArrayList<SuperPath> newLTBlocks = new ArrayList<SuperPath>();
 		ArrayList<SuperPath> newRTBlocks = new ArrayList<SuperPath>();
 		HashMap<SuperPath, SuperPath> map = new HashMap<SuperPath, SuperPath>();
 		try{
 			for (SuperPath LPath : ALTblocks){
-				for (SuperPath refPath : Tblocks){
-					if (SuperPath.areIntersecting(LPath, refPath)){
-						SuperPath RPath = A.permutation.get(LPath);
-						String[] newLCP = new String[NvTree.MAXCOL];
-						String[] newRCP = new String[NvTree.MAXCOL];					
-						for (int i=0; i<NvTree.MAXCOL; i++){
-							String ALTP = LPath.getColPath(i);
-							String ARTP = RPath.getColPath(i);
-							String refP = refPath.getColPath(i);
-							String suffix = "";
-							if(refP.length()> ALTP.length()){
-								suffix = refP.substring(ALTP.length());
-							}
-							newLCP[i] = ALTP + suffix;
-							newRCP[i] = ARTP + suffix;
+				SuperPath RPath = A.permutation.get(LPath);
+				//only the blocks of T that meet LPath are visited, the tree T is their index
+				for (SuperPath refPath : T.blocksMeeting(LPath)){
+					int dim = Math.max(Math.max(LPath.getDimension(), RPath.getDimension()), refPath.getDimension());
+					String[] newLCP = new String[dim+1];
+					String[] newRCP = new String[dim+1];					
+					for (int i=1; i<=dim; i++){
+						String ALTP = LPath.getColPath(i);
+						String ARTP = RPath.getColPath(i);
+						String refP = refPath.getColPath(i);
+						String suffix = "";
+						if(refP.length()> ALTP.length()){
+							suffix = refP.substring(ALTP.length());
 						}
-						SuperPath newLP = new SuperPath(newLCP);
-						SuperPath newRP = new SuperPath(newRCP);
-						newLTBlocks.add(newLP);
-						newRTBlocks.add(newRP);
-						map.put(newLP, newRP);
-					}				
+						newLCP[i] = ALTP + suffix;
+						newRCP[i] = ARTP + suffix;
+					}
+					SuperPath newLP = new SuperPath(newLCP);
+					SuperPath newRP = new SuperPath(newRCP);
+					newLTBlocks.add(newLP);
+					newRTBlocks.add(newRP);
+					map.put(newLP, newRP);
 				}
 			}		
 			
@@ -1040,6 +1483,8 @@ public class TreePair {
 	/**
 	 * <p>Returns the product of B and A (in the function composition sense: B o A).
 	 * The result has reduced form (now exposed carets, i.e. adjacent pattern blocks going to adjacent pattern blocks)
+	 * <br>
+	 * The range tree of A and the domain tree of B are refined together in one walk, see {@link TreeComposition}.
 	 * @param A a tree pair
 	 * @param B another tree pair to multiply by
 	 * @return reduced tree pair C such that, as a function, C(x) = B(A(x)) (i.e. with right action, C=BA).
@@ -1048,12 +1493,7 @@ public class TreePair {
 	 */
 	public static TreePair compose(TreePair A, TreePair B) throws TreeNodeException
 	{
-		A = inverseOf(A);
-		TreePair newA = refineLeftTreeTo(A, B.left_tree);
-		TreePair newB = refineLeftTreeTo(B, A.left_tree);
-		newA.invert();
-		TreePermutation perm = TreePermutation.multiply(newA.getPermutation(), newB.getPermutation());		
-		TreePair result = new TreePair(perm);
+		TreePair result = TreeComposition.compose(A, B);
 		result.removeExposedCarets();
 		return result;
 	}
@@ -1065,7 +1505,9 @@ public class TreePair {
 	 */
 	public TreePair duplicate() throws TreeNodeException
 	{
-		return new TreePair(left_tree.toString()+","+right_tree.toString()+","+permutation.toString());
+		NvTree L = left_tree.duplicate();
+		NvTree R = right_tree.duplicate();
+		return new TreePair(new TreePermutation(permutation, L, R));
 	}
 	
 	/**
@@ -1077,10 +1519,10 @@ public class TreePair {
 	 */
 	public static TreePair power(TreePair A, int n) throws TreeNodeException
 	{
-		TreePair a = A.duplicate();		//these lines implement negaive powers
+		TreePair a = A;					//these lines implement negaive powers
 		if (n<0)						//A^-n = (a=inverse of A)^n
 		{
-			a.invert();
+			a = inverseOf(A);
 			n = -n;
 		}
 		TreePair ans = new TreePair("0,0,1");
@@ -1131,6 +1573,54 @@ public class TreePair {
 	}
 
 	
+	/**
+	 * Returns a 64-bit fingerprint of this tree pair: a hash of the left tree, the right tree 
+	 * and the permutation, computed once and remembered until the pair is modified.
+	 * <br>
+	 * Pairs that are written the same way have the same fingerprint. Pairs that represent the same
+	 * element but are written differently do not; reduce() them first.
+	 * Two different pairs may (very rarely) have the same fingerprint; use {@link #isIdenticalTo(TreePair)}
+	 * to be sure.
+	 * @return the fingerprint of this pair
+	 */
+	public long fingerprint() throws TreeNodeException
+	{
+		if (!hasFingerprint)
+		{
+			long h = left_tree.getShape().getFingerprint();
+			h = TreeShape.mix(h, right_tree.getShape().getFingerprint());
+			h = TreeShape.mix(h, permutation.fingerprint());
+			fingerprint = h;
+			hasFingerprint = true;
+		}
+		return fingerprint;
+	}
+	
+	/**
+	 * Tells whether this pair is written exactly the same way as another pair:
+	 * same trees and same permutation (i.e. the same toString()).
+	 * @param B another tree pair 
+	 * @return true if the two pairs are identical
+	 */
+	public boolean isIdenticalTo(TreePair B) throws TreeNodeException
+	{
+		if (this == B)
+		{
+			return true;
+		}
+		if (B == null)
+		{
+			return false;
+		}
+		if (this.fingerprint() != B.fingerprint())
+		{
+			return false;
+		}
+		return (this.left_tree.getShape() == B.left_tree.getShape())
+			&& (this.right_tree.getShape() == B.right_tree.getShape())
+			&& Arrays.equals(this.permutation.toArray(), B.permutation.toArray());
+	}
+	
 	/**
 	 * Returns the string representation of this treepair
 	 */
@@ -1177,15 +1667,33 @@ public class TreePair {
 	}
 
 	/**
-	 * Returns a treepair corresponding to the inverse of a map defined by a given treepair
+	 * Returns a treepair corresponding to the inverse of a map defined by a given treepair.
+	 * <br>
+	 * The trees are not copied: A and the result share them until one of the two pairs 
+	 * modifies its trees, at which point that pair makes its own copies. A itself is not changed; 
+	 * the trees count the pairs that use them, so once one pair has made its copies, 
+	 * the other one modifies the trees in place again.
 	 * @param A a tree pair 
 	 * @return A^-1
 	 */
 	public static TreePair inverseOf(TreePair A) throws TreeNodeException 
 	{
-			TreePair B = A.duplicate();
+			TreePair B = new TreePair(new TreePermutation(A.permutation, A.left_tree, A.right_tree));
 			B.invert();
+			A.left_tree.share();
+			A.right_tree.share();
 			return B;
 	}
 	
+	/**
+	 * Tells the trees of this pair that the pair does not use them any more, so that 
+	 * the pairs that share them (see {@link #inverseOf(TreePair)}) can modify them in place again.
+	 * The pair must not be used afterwards.
+	 */
+	void release()
+	{
+		left_tree.release();
+		right_tree.release();
+	}
+	
 }
@@ -0,0 +1,184 @@
+package nvTrees;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A set of tree pairs, where two pairs are considered the same if they are
+ * written the same way (see {@link TreePair#isIdenticalTo(TreePair)}).
+ * <br>
+ * To count group elements, put reduced tree pairs in the set.
+ * <p>
+ * Pairs are looked up by their 64-bit fingerprints, so the set does not
+ * keep any strings; the pairs themselves are only compared when two of them have the same fingerprint.
+ * <p>
+ * The set can be shared by several threads (see {@link TreePair#growthParallel(java.util.ArrayList, int)}).
+ * A pair must not be changed once it is in the set.
+ * <p>
+ * An off-heap set does not keep the pairs themselves, but compact encodings of them outside of the Java heap
+ * (see {@link OffHeapPairStore}), so it can hold many more pairs. 
+ */
+public class TreePairSet {
+
+	/**
+	 * The pairs in the set, by fingerprint
+	 */
+	private final ConcurrentHashMap<Long, TreePair> pairs = new ConcurrentHashMap<Long, TreePair>();
+
+	/**
+	 * The other pairs with the same fingerprint as a pair in the pairs map
+	 * (this should almost never be used, so it is simply locked)
+	 */
+	private final HashMap<Long, ArrayList<TreePair>> collisions = new HashMap<Long, ArrayList<TreePair>>();
+
+	/**
+	 * Number of pairs in the set
+	 */
+	private final AtomicInteger size = new AtomicInteger();
+	
+	/**
+	 * Holds the pairs instead of the maps if the set is off-heap, null otherwise
+	 */
+	private final OffHeapPairStore store;
+	
+	/**
+	 * Creates an empty set that keeps the pairs on the heap
+	 */
+	public TreePairSet()
+	{
+		this(false);
+	}
+	
+	/**
+	 * Creates an empty set
+	 * @param offHeap if true, the pairs are kept as compact encodings outside of the Java heap;
+	 * they are decoded again by {@link #toList()}
+	 */
+	public TreePairSet(boolean offHeap)
+	{
+		store = offHeap ? new OffHeapPairStore() : null;
+	}
+
+	/**
+	 * Adds a tree pair to the set, unless an identical pair is already there
+	 * @param T a tree pair
+	 * @return true if the pair was added, false if it was already in the set
+	 */
+	public boolean add(TreePair T) throws TreeNodeException
+	{
+		if (store != null)
+		{
+			return store.add(T);
+		}
+		Long key = T.fingerprint();
+		TreePair first = pairs.putIfAbsent(key, T);
+		if (first == null)
+		{
+			size.incrementAndGet();
+			return true;
+		}
+		if (first.isIdenticalTo(T))
+		{
+			return false;
+		}
+		synchronized (collisions)
+		{
+			ArrayList<TreePair> others = collisions.get(key);
+			if (others == null)
+			{
+				others = new ArrayList<TreePair>();
+				collisions.put(key, others);
+			}
+			for (TreePair P:others)
+			{
+				if (P.isIdenticalTo(T))
+				{
+					return false;
+				}
+			}
+			others.add(T);
+			size.incrementAndGet();
+			return true;
+		}
+	}
+
+	/**
+	 * Tells whether the set contains a pair identical to a given one
+	 * @param T a tree pair
+	 * @return true if an identical pair is in the set
+	 */
+	public boolean contains(TreePair T) throws TreeNodeException
+	{
+		if (store != null)
+		{
+			return store.contains(T);
+		}
+		Long key = T.fingerprint();
+		TreePair first = pairs.get(key);
+		if (first == null)
+		{
+			return false;
+		}
+		if (first.isIdenticalTo(T))
+		{
+			return true;
+		}
+		synchronized (collisions)
+		{
+			ArrayList<TreePair> others = collisions.get(key);
+			if (others != null)
+			{
+				for (TreePair P:others)
+				{
+					if (P.isIdenticalTo(T))
+					{
+						return true;
+					}
+				}
+			}
+			return false;
+		}
+	}
+
+	/**
+	 * Returns the number of pairs in the set
+	 */
+	public int size()
+	{
+		if (store != null)
+		{
+			return store.size();
+		}
+		return size.get();
+	}
+
+	/**
+	 * Returns all the pairs in the set
+	 * @return a new list containing the pairs
+	 */
+	public ArrayList<TreePair> toList()
+	{
+		if (store != null)
+		{
+			try
+			{
+				return store.toList();
+			}
+			catch (TreeNodeException e)
+			{
+				//cannot happen: the encodings are written from valid pairs
+				throw new IllegalStateException(e.getError());
+			}
+		}
+		ArrayList<TreePair> ans = new ArrayList<TreePair>(pairs.values());
+		synchronized (collisions)
+		{
+			for (ArrayList<TreePair> others:collisions.values())
+			{
+				ans.addAll(others);
+			}
+		}
+		return ans;
+	}
+}
@@ -21,9 +21,19 @@ public class TreePermutation {
 	/**
 	 * Stores the permutation of the leaves 
 	 * as a map between the nodes. The nodes
-	 * are identified by their Super Paths
+	 * are identified by their Super Paths.
+	 * <br>Null if the permutation is only stored as an array; use {@link #getMap()} to access it.
 	 */
-	public HashMap<SuperPath, SuperPath> permutationMap;
+	private HashMap<SuperPath, SuperPath> permutationMap;
+	
+	/**
+	 * Stores the permutation of the leaves as an array, in the format of {@link #toArray()}.
+	 * <br>Null if the permutation is only stored as a map. 
+	 * <p>
+	 * At least one of permutationMap and permutationArray is not null. When both are, they 
+	 * describe the same permutation; changes made through the map discard the array.
+	 */
+	private int[] permutationArray;
 
 	/**
 	 * The associated left tree
@@ -44,18 +54,36 @@ public class TreePermutation {
 	 * @return array containg the permutation of 1..n 
 	 */
 	public int[] toArray() throws TreeNodeException
+	{
+		if (permutationArray == null)
+		{
+			permutationArray = arrayFromMap();
+		}
+		return permutationArray.clone();
+	}
+	
+	/**
+	 * Computes the permutation array from the permutation map
+	 * @return the permutation as an array; see {@link #toArray()}
+	 */
+	private int[] arrayFromMap() throws TreeNodeException
 	{
 		try
 		{
 			int[] ans = new int[this.permutationMap.size()];
 			ArrayList<SuperPath>left_leaves = left_tree.detailedDFS();
 			ArrayList<SuperPath>right_leaves = right_tree.detailedDFS();
+			HashMap<SuperPath, Integer>right_index = new HashMap<SuperPath, Integer>();
+			for (int i=0;i<right_leaves.size();i++)
+			{
+				right_index.put(right_leaves.get(i), i);
+			}
 			for (int i=0;i<ans.length;i++)
 			{
 				SuperPath left_leaf = left_leaves.get(i);
 				SuperPath right_leaf=permutationMap.get(left_leaf);
-				int index = right_leaves.indexOf(right_leaf);
-				if (index < 0)
+				Integer index = right_index.get(right_leaf);
+				if (index == null)
 				{
 					throw new TreeNodeException("Permutation error: the leaf \n"+left_leaf+" has no match");
 				}
@@ -147,7 +175,6 @@ public class TreePermutation {
 		this.left_tree = pair.left_tree;
 		this.right_tree= pair.right_tree;
 		
-		permutationMap = new HashMap<SuperPath, SuperPath>();
 		int n=pair.left_tree.getNumLeaves();
 		int nR=pair.right_tree.getNumLeaves();
 		if (n!=nR)
@@ -170,29 +197,57 @@ public class TreePermutation {
 		{
 			throw new TreeNodeException("Wrong amount of numbers in permutation! Must be "+n+", you provided "+permutation.length);
 		}
-		ArrayList<SuperPath>left_leaves = pair.left_tree.detailedDFS();
-		ArrayList<SuperPath>right_leaves = pair.right_tree.detailedDFS();
+		//IMPORTANT: NOTE THE ORDER ! permutation[i] is the left leaf that goes to the i-th right leaf
+		boolean[] seen = new boolean[n];
 		for (int i=0;i<n;i++)
 		{
-			//IMPORTANT: NOTE THE ORDER !
-			int index2 = i;
-			int index1 = permutation[i]-1;
-			try //put the leaf pair into permutation map
-			{
-				SuperPath leftnode = left_leaves.get(index1);
-				SuperPath rightnode = right_leaves.get(index2);
-				permutationMap.put(leftnode, rightnode);	
-			}
-			catch (IndexOutOfBoundsException e)
+			if ((permutation[i]<1)||(permutation[i]>n))
 			{
 				throw new TreeNodeException("Permutation indices out of bounds (must be in 1,2,..,n)!");
 			}
-			
-			if ((index2>right_leaves.size()-1)||(index1>left_leaves.size()-1))
+			if (seen[permutation[i]-1])
 			{
 				throw new TreeNodeException("Weird numbers in permutation! Must be 1, 2, ... ,n");
 			}
-		}		
+			seen[permutation[i]-1] = true;
+		}
+		this.permutationArray = permutation;
+		watchTrees();
+	}
+	
+	/**
+	 * Constructs a permutation from given two trees and an array
+	 * @param left_tree associated left tree
+	 * @param right_tree associated right tree
+	 * @param array the permutation in the format of {@link #toArray()}; it is not copied
+	 */
+	TreePermutation(NvTree left_tree, NvTree right_tree, int[] array)
+	{
+		this.left_tree = left_tree;
+		this.right_tree = right_tree;
+		this.permutationArray = array;
+		watchTrees();
+	}
+	
+	/**
+	 * Constructs a copy of a permutation, associated to (copies of) the same trees 
+	 * @param P the permutation to copy
+	 * @param left_tree associated left tree; must have the same shape as P's left tree
+	 * @param right_tree associated right tree; must have the same shape as P's right tree
+	 */
+	public TreePermutation(TreePermutation P, NvTree left_tree, NvTree right_tree)
+	{
+		this.left_tree = left_tree;
+		this.right_tree = right_tree;
+		if (P.permutationMap != null)
+		{
+			this.permutationMap = new HashMap<SuperPath, SuperPath>(P.permutationMap);
+		}
+		if (P.permutationArray != null)
+		{
+			this.permutationArray = P.permutationArray.clone();
+		}
+		watchTrees();
 	}
 
 	/**
@@ -206,6 +261,7 @@ public class TreePermutation {
 		this.left_tree = left_tree;
 		this.right_tree = right_tree;
 		permutationMap = new HashMap<SuperPath, SuperPath>(map);
+		watchTrees();
 	}
 	
 	
@@ -215,20 +271,92 @@ public class TreePermutation {
 	 */
 	public void reset() throws TreeNodeException
 	{
-		this.permutationMap.clear();
-		ArrayList<SuperPath>L = left_tree.detailedDFS();
-		ArrayList<SuperPath>R = right_tree.detailedDFS();
-		if (L.size() != R.size())
+		int n = left_tree.getNumLeaves();
+		if (n != right_tree.getNumLeaves())
 		{
 			throw new TreeNodeException("The trees have different number of nodes! \n Cannot construct default permutation.");
 		}
 		else
 		{
-			for (int i=0;i<L.size();i++)
+			this.permutationMap = null;
+			this.permutationArray = generateIdArray(n);
+			watchTrees();
+		}
+	}
+	
+	/**
+	 * Registers this permutation with its trees, so that it is told before they change.
+	 * <br>
+	 * A tree only remembers the last permutation that registered with it, so the owner of 
+	 * the permutation registers it again before it changes the trees.
+	 */
+	void watchTrees()
+	{
+		left_tree.setWatcher(this);
+		right_tree.setWatcher(this);
+	}
+	
+	/**
+	 * Unregisters this permutation from its trees. Used when the permutation is 
+	 * about to be replaced by one that is built for the changed trees.
+	 */
+	void forgetTrees()
+	{
+		if (left_tree.getWatcher() == this)
+		{
+			left_tree.setWatcher(null);
+		}
+		if (right_tree.getWatcher() == this)
+		{
+			right_tree.setWatcher(null);
+		}
+	}
+	
+	/**
+	 * Called before one of the trees changes: the array refers to the leaves by their order, 
+	 * so the map is built from the leaves as they are now, and the array is dropped.
+	 * @param T the tree that is about to change
+	 */
+	void treeChanging(NvTree T)
+	{
+		if ((permutationArray != null)&&((T == left_tree)||(T == right_tree)))
+		{
+			ensureMap();
+			permutationArray = null;
+		}
+	}
+	
+	/**
+	 * Returns the permutation as a map from the SuperPaths of the left leaves to the 
+	 * SuperPaths of the right leaves, building it if needed.
+	 * <br>
+	 * The map is backed by this permutation: changes to the map change the permutation.
+	 * @return the permutation map
+	 */
+	public HashMap<SuperPath, SuperPath> getMap()
+	{
+		HashMap<SuperPath, SuperPath> map = ensureMap();
+		permutationArray = null;	//the caller may change the map
+		return map;
+	}
+	
+	/**
+	 * Builds the permutation map from the permutation array, if it is not built yet
+	 * @return the permutation map
+	 */
+	private HashMap<SuperPath, SuperPath> ensureMap()
+	{
+		if (permutationMap == null)
+		{
+			ArrayList<SuperPath>left_leaves = left_tree.detailedDFS();
+			ArrayList<SuperPath>right_leaves = right_tree.detailedDFS();
+			permutationMap = new HashMap<SuperPath, SuperPath>();
+			for (int i=0;i<permutationArray.length;i++)
 			{
-				permutationMap.put(L.get(i), R.get(i));
+				permutationMap.put(left_leaves.get(permutationArray[i]-1), right_leaves.get(i));
 			}
 		}
+		return permutationMap;
 	}
 	
 	/**
@@ -241,13 +369,25 @@ public class TreePermutation {
 		this.left_tree = this.right_tree;
 		this.right_tree = temp;
 		//Fix the permutation
-		HashMap<SuperPath, SuperPath>newMap = new HashMap<SuperPath, SuperPath>();
-		for(SuperPath S:permutationMap.keySet())
+		if (permutationMap != null)
+		{
+			HashMap<SuperPath, SuperPath>newMap = new HashMap<SuperPath, SuperPath>();
+			for(SuperPath S:permutationMap.keySet())
+			{
+				SuperPath T = permutationMap.get(S);
+				newMap.put(T, S);
+			}
+			this.permutationMap = newMap;
+		}
+		if (permutationArray != null)
 		{
-			SuperPath T = permutationMap.get(S);
-			newMap.put(T, S);
+			int[] newArray = new int[permutationArray.length];
+			for (int i=0;i<permutationArray.length;i++)
+			{
+				newArray[permutationArray[i]-1] = i+1;
+			}
+			this.permutationArray = newArray;
 		}
-		this.permutationMap = newMap;
 	}
 
 	/**
@@ -258,7 +398,7 @@ public class TreePermutation {
 	 */
 	public boolean containsKey(SuperPath key)
 	{
-		return permutationMap.containsKey(key);
+		return ensureMap().containsKey(key);
 	}
 	
 	/**
@@ -269,7 +409,7 @@ public class TreePermutation {
 	 */
 	public boolean containsValue(SuperPath value)
 	{
-		return permutationMap.containsValue(value);
+		return ensureMap().containsValue(value);
 	}
 	
 	/**
@@ -279,7 +419,8 @@ public class TreePermutation {
 	 */
 	public void put (SuperPath key, SuperPath value)
 	{
-		permutationMap.put(key, value);
+		ensureMap().put(key, value);
+		permutationArray = null;
 	}
 	
 	
@@ -290,7 +431,7 @@ public class TreePermutation {
 	 */
 	public SuperPath get(SuperPath key) 
 	{
-		return permutationMap.get(key);
+		return ensureMap().get(key);
 	}
 	
 
@@ -300,7 +441,8 @@ public class TreePermutation {
 	 */
 	public void remove(SuperPath key)
 	{
-		permutationMap.remove(key);
+		ensureMap().remove(key);
+		permutationArray = null;
 	}
 	
 	
@@ -310,7 +452,7 @@ public class TreePermutation {
 	 */
 	public int size()
 	{
-		return permutationMap.size();
+		return (permutationArray != null) ? permutationArray.length : permutationMap.size();
 	}
 	
 	
@@ -327,7 +469,7 @@ public class TreePermutation {
 	 */
 	public Set<SuperPath>keySet()
 	{
-		return permutationMap.keySet();
+		return ensureMap().keySet();
 	}
 	
 	/**
@@ -336,7 +478,7 @@ public class TreePermutation {
 	 */
 	public Collection<SuperPath>valueSet()
 	{
-		return permutationMap.values();
+		return ensureMap().values();
 	}
 	
 	
@@ -359,6 +501,18 @@ public class TreePermutation {
 		}
 		NvTree left = A.left_tree.duplicate();
 		NvTree right = B.right_tree.duplicate();
+		if ((A.permutationArray != null)&&(B.permutationArray != null)&&(A.right_tree.getShape()==B.left_tree.getShape()))
+		{
+			//the middle trees are the same, so their leaves are in the same order
+			int[] a = A.permutationArray;
+			int[] b = B.permutationArray;
+			int[] c = new int[b.length];
+			for (int i=0;i<b.length;i++)
+			{
+				c[i] = a[b[i]-1];
+			}
+			return new TreePermutation(left,right,c);
+		}
 		HashMap<SuperPath, SuperPath>map = new HashMap<SuperPath, SuperPath>();
 		for (SuperPath p:A.keySet())
 		{
@@ -370,11 +524,29 @@ public class TreePermutation {
 		return result;
 	}
 	
+	/**
+	 * Returns a 64-bit fingerprint of the permutation, computed from {@link #toArray()}
+	 * @return a hash of the permutation of 1..n
+	 */
+	public long fingerprint() throws TreeNodeException
+	{
+		long h = 0;
+		for (int a:this.toArray())
+		{
+			h = TreeShape.mix(h, a);
+		}
+		return h;
+	}
+	
 	public String toString()
 	{
 		try
 		{
-			return NvTree.arrayToString(this.toArray());
+			if (permutationArray == null)
+			{
+				permutationArray = arrayFromMap();
+			}
+			return NvTree.arrayToString(permutationArray);
 		}
 		catch (TreeNodeException e)
 		{			
@@ -389,7 +561,11 @@ public class TreePermutation {
 	 */
 	public boolean preservesOrder() throws TreeNodeException
 	{
-		int[] a = this.toArray();
+		if (permutationArray == null)
+		{
+			permutationArray = arrayFromMap();
+		}
+		int[] a = permutationArray;
 		for (int i=0; i<a.length; i++)
 		{
 			if (a[i] != i+1) return false;
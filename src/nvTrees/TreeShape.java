@@ -0,0 +1,331 @@
+package nvTrees;
+import java.lang.ref.WeakReference;
+import java.util.WeakHashMap;
+
+/**
+ * The shape of an nV tree or subtree: the colors and the structure, without parents or paths.
+ * <p>
+ * Shapes are immutable and hash-consed: there is only one TreeShape object for each
+ * distinct shape, so two subtrees have the same shape exactly when their TreeShapes
+ * are the same object (==). Repeated subtrees, such as the full grids created when a tree
+ * is extended, are stored once, and the quantities computed for a shape (number of leaves,
+ * depth, color depths) are computed once for all the subtrees that have that shape.
+ * <p>
+ * Shapes that are no longer used by any tree are garbage collected.
+ */
+public final class TreeShape {
+
+	/**
+	 * The table of shapes has 2^STRIPE_BITS stripes
+	 */
+	private static final int STRIPE_BITS = 6;
+
+	/**
+	 * The table of all shapes in use, split in stripes by hash code, each with its own lock,
+	 * so that threads that build shapes at the same time (see {@link TreePair#growthParallel})
+	 * rarely wait for each other. The keys are held weakly, and so are the values
+	 * (which are the keys themselves), so unused shapes can be collected.
+	 */
+	private static final WeakHashMap<TreeShape, WeakReference<TreeShape>>[] table = newTable();
+
+	/**
+	 * The shape of a single leaf
+	 */
+	public static final TreeShape LEAF = new TreeShape(0, null, null);
+
+	/**
+	 * The color of the root of this shape; 0 for a leaf
+	 */
+	public final int color;
+
+	/**
+	 * The shape of the left subtree; null for a leaf
+	 */
+	public final TreeShape left;
+
+	/**
+	 * The shape of the right subtree; null for a leaf
+	 */
+	public final TreeShape right;
+
+	/**
+	 * Structural hash code, computed from the color and the hash codes of the subtrees
+	 */
+	private final int hash;
+
+	/**
+	 * 64-bit fingerprint of the shape. Unlike hash, it is mixed well enough to tell 
+	 * different trees apart in practice, and it does not depend on the order in which 
+	 * shapes were created.
+	 */
+	private final long fingerprint;
+
+	/**
+	 * Number of leaves of this shape
+	 */
+	private final int numLeaves;
+
+	/**
+	 * Depth of this shape (1 for a leaf)
+	 */
+	private final int depth;
+
+	/**
+	 * Largest color used in this shape
+	 */
+	private final int maxColor;
+
+	/**
+	 * Color depths of this shape, computed when first asked for
+	 */
+	private volatile int[] colorDepths = null;
+
+	/**
+	 * Creates a new shape. Should only be called by {@link #caret(int, TreeShape, TreeShape)},
+	 * which makes sure there is only one copy of each shape.
+	 */
+	private TreeShape(int color, TreeShape left, TreeShape right)
+	{
+		this.color = color;
+		this.left = left;
+		this.right = right;
+		if (left == null)
+		{
+			this.hash = 1;
+			this.fingerprint = mix(0, 0);
+			this.numLeaves = 1;
+			this.depth = 1;
+			this.maxColor = 0;
+		}
+		else
+		{
+			this.hash = (31*(31*color+left.hash)+right.hash)*0x9E3779B1;
+			this.fingerprint = mix(mix(mix(0, color), left.fingerprint), right.fingerprint);
+			this.numLeaves = left.numLeaves + right.numLeaves;
+			this.depth = 1 + Math.max(left.depth, right.depth);
+			this.maxColor = Math.max(color, Math.max(left.maxColor, right.maxColor));
+		}
+	}
+
+	/**
+	 * Returns the shape of a caret of a given color with given subtrees
+	 * @param color the color of the caret, 1..NvTree.MAXCOL-1
+	 * @param left the shape of the left subtree
+	 * @param right the shape of the right subtree
+	 * @return the unique TreeShape with this root and these subtrees
+	 */
+	public static TreeShape caret(int color, TreeShape left, TreeShape right) throws TreeNodeException
+	{
+		if ((color<1)||(color>=NvTree.MAXCOL))
+		{
+			throw new TreeNodeException("The Color "+color+" is invalid for a caret. Must be 1 to "+(NvTree.MAXCOL-1)+".");
+		}
+		if ((left==null)||(right==null))
+		{
+			throw new TreeNodeException("A caret must have two subtrees");
+		}
+		TreeShape S = new TreeShape(color, left, right);
+		WeakHashMap<TreeShape, WeakReference<TreeShape>> stripe = table[S.hash >>> (32 - STRIPE_BITS)];	//the high bits of hash are the best mixed
+		synchronized (stripe)
+		{
+			WeakReference<TreeShape> ref = stripe.get(S);
+			TreeShape existing = (ref==null) ? null : ref.get();
+			if (existing != null)
+			{
+				return existing;
+			}
+			stripe.put(S, new WeakReference<TreeShape>(S));
+			return S;
+		}
+	}
+
+	/**
+	 * Creates the stripes of the table of shapes
+	 */
+	@SuppressWarnings("unchecked")
+	private static WeakHashMap<TreeShape, WeakReference<TreeShape>>[] newTable()
+	{
+		WeakHashMap<TreeShape, WeakReference<TreeShape>>[] stripes = new WeakHashMap[1 << STRIPE_BITS];
+		for (int i=0;i<stripes.length;i++)
+		{
+			stripes[i] = new WeakHashMap<TreeShape, WeakReference<TreeShape>>();
+		}
+		return stripes;
+	}
+
+	/**
+	 * Returns the shape of the subtree at a node
+	 * @param root the root of the subtree
+	 * @return the shape of the subtree
+	 */
+	public static TreeShape of(TreeNode root) throws TreeNodeException
+	{
+		if (root.isLeaf())
+		{
+			return LEAF;
+		}
+		return caret(root.color, of(root.left), of(root.right));
+	}
+
+	/**
+	 * Returns the shape of a full grid: the tree in which every root-leaf path has
+	 * color i exactly depths[i] times. The carets of color 1 are on top, then those of
+	 * color 2, and so on.
+	 * @param depths depths[i] = number of times color i occurs on each path, for i&gt;0
+	 * @return the shape of the grid
+	 */
+	public static TreeShape grid(int[] depths) throws TreeNodeException
+	{
+		TreeShape S = LEAF;
+		for (int i=depths.length-1;i>0;i--)
+		{
+			for (int k=0;k<depths[i];k++)
+			{
+				S = caret(i, S, S);
+			}
+		}
+		return S;
+	}
+
+	/**
+	 * Mixes a value into a running 64-bit fingerprint
+	 * @param h the fingerprint so far
+	 * @param v the value to add
+	 * @return the new fingerprint
+	 */
+	static long mix(long h, long v)
+	{
+		long z = h*0x9E3779B97F4A7C15L + v + 0x632BE59BD9B4E019L;
+		z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+		z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+		return z ^ (z >>> 31);
+	}
+
+	/**
+	 * Returns the fingerprint of this shape: a 64-bit hash of the colors and the structure.
+	 * Equal shapes have equal fingerprints.
+	 */
+	public long getFingerprint()
+	{
+		return fingerprint;
+	}
+
+	/**
+	 * Tells whether this shape is a single leaf
+	 */
+	public boolean isLeaf()
+	{
+		return (left == null);
+	}
+
+	/**
+	 * Counts the number of leaves of this shape
+	 */
+	public int getNumLeaves()
+	{
+		return numLeaves;
+	}
+
+	/**
+	 * Returns the depth of this shape
+	 * @return the depth; 1 for a single leaf
+	 */
+	public int getDepth()
+	{
+		return depth;
+	}
+
+	/**
+	 * Returns the largest color used in this shape
+	 * @return the largest color; 0 for a single leaf
+	 */
+	public int getMaxColor()
+	{
+		return maxColor;
+	}
+
+	/**
+	 * Gets color depths for each color; see {@link NvTree#getColorDepths()}
+	 * @return a new array containing the color depths
+	 */
+	public int[] getColorDepths()
+	{
+		return colorDepths().clone();
+	}
+
+	/**
+	 * Returns the (shared) color depths array of this shape, computing it if needed
+	 */
+	private int[] colorDepths()
+	{
+		int[] depths = colorDepths;
+		if (depths == null)
+		{
+			if (isLeaf())
+			{
+				depths = new int[] {1};
+			}
+			else
+			{
+				int[] left_depths = left.colorDepths();
+				int[] right_depths = right.colorDepths();
+				depths = new int[maxColor+1];
+				depths[color] = 1;
+				for (int i=0;i<depths.length;i++)
+				{
+					int L = (i<left_depths.length) ? left_depths[i] : 0;
+					int R = (i<right_depths.length) ? right_depths[i] : 0;
+					depths[i] += Math.max(L, R);
+				}
+			}
+			colorDepths = depths;
+		}
+		return depths;
+	}
+
+	/**
+	 * Two shapes are equal if they have the same color and the very same subtrees.
+	 * Since subtrees are unique, this is the same as having the same structure.
+	 */
+	public boolean equals(Object o)
+	{
+		if (this == o)
+		{
+			return true;
+		}
+		if (!(o instanceof TreeShape))
+		{
+			return false;
+		}
+		TreeShape S = (TreeShape) o;
+		return (color == S.color) && (left == S.left) && (right == S.right);
+	}
+
+	public int hashCode()
+	{
+		return hash;
+	}
+
+	/**
+	 * Returns the tree string of this shape (see {@link NvTree#NvTree(String)})
+	 */
+	public String toString()
+	{
+		StringBuilder S = new StringBuilder();
+		appendString(S);
+		return S.toString();
+	}
+
+	/**
+	 * Appends the tree string of this shape to a StringBuilder
+	 */
+	private void appendString(StringBuilder S)
+	{
+		S.append(NvTree.colorToken(color));
+		if (!isLeaf())
+		{
+			left.appendString(S);
+			right.appendString(S);
+		}
+	}
+}